@@ -0,0 +1,484 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a made up facebook export, laid out like a real one, for benchmarks and load tests to run against.
+ *
+ * Albums go under posts/album, and conversations under messages/inbox and messages/e2ee_cutover, split over
+ * message_N.json files like facebook does. Every photo is the same tiny but valid JPEG, and every video the same
+ * tiny but valid MP4, optionally made into a large sparse file. About half of the photos and videos have
+ * media_metadata, the rest only having the creation_timestamp of the upload. The same seed always gives the same export.
+ *
+ * Run it on its own to make an export for profiling a whole run:
+ * java -cp benchmarks/target/benchmarks.jar com.github.addshore.facebook.data.image.exif.ExportGenerator --out /tmp/export
+ */
+class ExportGenerator {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java -cp benchmarks.jar " + ExportGenerator.class.getName() + " --out <dir> [options]",
+            "",
+            "  --out <path>                  Directory to write the export to, which must not exist yet",
+            "  --albums <n>                  Number of albums (default: 100)",
+            "  --photos-per-album <n>        Photos in each album (default: 100)",
+            "  --conversations <n>           Number of conversations (default: 500)",
+            "  --media-per-conversation <n>  Average photos, videos and files in each conversation (default: 200)",
+            "  --text-per-media <n>          Text only messages for each message with media (default: 5)",
+            "  --messages-per-file <n>       Messages in each message_N.json (default: 10000)",
+            "  --e2ee-share <fraction>       Share of conversations under e2ee_cutover (default: 0.25)",
+            "  --video-share <fraction>      Share of conversation media that are videos (default: 0.1)",
+            "  --file-share <fraction>       Share of conversation media that are other files (default: 0.05)",
+            "  --large-every <n>             Make every nth video a large sparse file (default: never)",
+            "  --large-size <MB>             Size of the large sparse videos, copies in Processed take the full size (default: 1024)",
+            "  --seed <n>                    Seed for the random choices (default: 1)",
+            "  --help                        Show this help"
+    );
+
+    static final String ACTIVITY_DIRECTORY = "your_facebook_activity";
+
+    private static final String[] CAMERA_MAKES = {"Apple", "samsung", "Google", "NIKON CORPORATION", "Canon"};
+    private static final String[] FILE_EXTENSIONS = {"pdf", "docx", "txt", "zip", "gif"};
+    private static final long FIRST_TIMESTAMP = 1262304000L;
+
+    private final Random random;
+    private int albums = 0;
+    private int photosPerAlbum = 0;
+    private int conversations = 0;
+    private int mediaPerConversation = 0;
+    private boolean variedConversationSizes = false;
+    private int textMessagesPerMedia = 0;
+    private int messagesPerFile = 10000;
+    private double e2eeShare = 0;
+    private double videoShare = 0;
+    private double fileShare = 0;
+    private int largeVideoEvery = 0;
+    private long largeVideoSize = 1024L * 1024 * 1024;
+
+    private byte[] jpeg;
+    private byte[] mp4;
+    private int videosWritten = 0;
+    private long mediaWritten = 0;
+
+    /**
+     * @param seed The seed for the random choices made for the export
+     */
+    ExportGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param albums The number of albums
+     * @param photosPerAlbum The number of photos in each album
+     */
+    ExportGenerator setAlbums(int albums, int photosPerAlbum) {
+        this.albums = albums;
+        this.photosPerAlbum = photosPerAlbum;
+        return this;
+    }
+
+    /**
+     * @param conversations The number of conversations
+     * @param mediaPerConversation The number of photos, videos and files in each conversation
+     */
+    ExportGenerator setConversations(int conversations, int mediaPerConversation) {
+        this.conversations = conversations;
+        this.mediaPerConversation = mediaPerConversation;
+        return this;
+    }
+
+    /**
+     * @param variedConversationSizes Whether conversations vary in size, most small and a few very large,
+     *                                with mediaPerConversation as the average, rather than all being the same size
+     */
+    ExportGenerator setVariedConversationSizes(boolean variedConversationSizes) {
+        this.variedConversationSizes = variedConversationSizes;
+        return this;
+    }
+
+    /**
+     * @param textMessagesPerMedia The number of text only messages written for each message with media
+     * @param messagesPerFile The number of messages in each message_N.json, facebook uses 10000
+     */
+    ExportGenerator setMessages(int textMessagesPerMedia, int messagesPerFile) {
+        this.textMessagesPerMedia = textMessagesPerMedia;
+        this.messagesPerFile = Math.max(1, messagesPerFile);
+        return this;
+    }
+
+    /**
+     * @param e2eeShare The share of conversations that go under e2ee_cutover rather than the inbox
+     */
+    ExportGenerator setE2eeShare(double e2eeShare) {
+        this.e2eeShare = e2eeShare;
+        return this;
+    }
+
+    /**
+     * @param videoShare The share of conversation media that are videos
+     * @param fileShare The share of conversation media that are other files, the rest being photos
+     */
+    ExportGenerator setMediaMix(double videoShare, double fileShare) {
+        this.videoShare = videoShare;
+        this.fileShare = fileShare;
+        return this;
+    }
+
+    /**
+     * @param every Make every nth video a large sparse file, 0 for never
+     * @param size The size of the large videos in bytes, which takes next to no disk space on most file systems
+     */
+    ExportGenerator setLargeVideos(int every, long size) {
+        this.largeVideoEvery = every;
+        this.largeVideoSize = size;
+        return this;
+    }
+
+    /**
+     * @return The number of media files written so far
+     */
+    long getMediaWritten() {
+        return mediaWritten;
+    }
+
+    /**
+     * @param root The directory to write the export to, which is what would be given as --dir
+     * @return The posts directory of the export
+     */
+    File generate(File root) throws IOException {
+        File activityDir = new File(root, ACTIVITY_DIRECTORY);
+        File postsDir = new File(activityDir, "posts");
+        Files.createDirectories(new File(postsDir, "album").toPath());
+
+        for (int album = 0; album < albums; album++) {
+            String mediaPath = "posts/album_" + album;
+            JSONArray photos = new JSONArray();
+            for (int photo = 0; photo < photosPerAlbum; photo++) {
+                photos.put(writePhoto(activityDir, mediaPath + "/photo_" + photo + ".jpg"));
+            }
+            JSONObject albumJson = new JSONObject();
+            albumJson.put("name", "Album " + album);
+            albumJson.put("photos", photos);
+            albumJson.put("last_modified_timestamp", nextTimestamp());
+            write(new File(postsDir, "album" + File.separator + album + ".json"), albumJson);
+        }
+
+        for (int conversation = 0; conversation < conversations; conversation++) {
+            String group = random.nextDouble() < e2eeShare ? "e2ee_cutover" : "inbox";
+            writeConversation(activityDir, "messages/" + group + "/conversation_" + conversation, conversation);
+        }
+
+        return postsDir;
+    }
+
+    /**
+     * Writes the media and message files of a conversation
+     */
+    private void writeConversation(File activityDir, String conversationPath, int conversation) throws IOException {
+        int media = mediaPerConversation;
+        if (variedConversationSizes) {
+            // Exponentially distributed, so most conversations are small and a few are very large
+            media = (int) Math.round(-mediaPerConversation * Math.log(1 - random.nextDouble()));
+        }
+
+        JSONArray participants = new JSONArray()
+                .put(new JSONObject().put("name", "Person " + conversation))
+                .put(new JSONObject().put("name", "Me"));
+        JSONArray messages = new JSONArray();
+        int fileNumber = 1;
+        for (int item = 0; item < media; item++) {
+            for (int text = 0; text < textMessagesPerMedia; text++) {
+                messages.put(message(item + text).put("content", "Message " + item + "." + text));
+            }
+
+            JSONObject message = message(item);
+            double kind = random.nextDouble();
+            if (kind < videoShare) {
+                message.put("videos", new JSONArray().put(writeVideo(activityDir, conversationPath + "/videos/video_" + item + ".mp4")));
+            } else if (kind < videoShare + fileShare) {
+                String extension = FILE_EXTENSIONS[random.nextInt(FILE_EXTENSIONS.length)];
+                message.put("files", new JSONArray().put(writeFile(activityDir, conversationPath + "/files/file_" + item + "." + extension)));
+            } else {
+                message.put("photos", new JSONArray().put(writePhoto(activityDir, conversationPath + "/photos/photo_" + item + ".jpg")));
+            }
+            messages.put(message);
+
+            if (messages.length() >= messagesPerFile) {
+                writeMessageFile(activityDir, conversationPath, fileNumber++, participants, messages, conversation);
+                messages = new JSONArray();
+            }
+        }
+        if (messages.length() > 0 || fileNumber == 1) {
+            writeMessageFile(activityDir, conversationPath, fileNumber, participants, messages, conversation);
+        }
+    }
+
+    private JSONObject message(int item) {
+        JSONObject message = new JSONObject();
+        message.put("sender_name", item % 2 == 0 ? "Me" : "Someone");
+        message.put("timestamp_ms", nextTimestamp() * 1000);
+        return message;
+    }
+
+    private void writeMessageFile(File activityDir, String conversationPath, int fileNumber, JSONArray participants, JSONArray messages, int conversation) throws IOException {
+        JSONObject messageJson = new JSONObject();
+        messageJson.put("participants", participants);
+        messageJson.put("messages", messages);
+        // Group conversations have a title, and the rest are named after the participants
+        if (conversation % 3 == 0) {
+            messageJson.put("title", "Conversation " + conversation);
+        }
+        write(new File(activityDir, conversationPath + File.separator + "message_" + fileNumber + ".json"), messageJson);
+    }
+
+    /**
+     * Writes a photo, and makes the JSON that the export would have for it
+     */
+    private JSONObject writePhoto(File activityDir, String path) throws IOException {
+        writeMedia(activityDir, path, getJpeg(), 0);
+        JSONObject photo = upload(path);
+        if (random.nextBoolean()) {
+            JSONObject photoMetadata = new JSONObject();
+            photoMetadata.put("camera_make", CAMERA_MAKES[random.nextInt(CAMERA_MAKES.length)]);
+            photoMetadata.put("camera_model", "Model " + random.nextInt(20));
+            photoMetadata.put("taken_timestamp", photo.getLong("creation_timestamp") - random.nextInt(86400));
+            photoMetadata.put("modified_timestamp", photo.getLong("creation_timestamp"));
+            photoMetadata.put("exposure", "1/" + (30 + random.nextInt(1000)));
+            photoMetadata.put("focal_length", (20 + random.nextInt(80)) + "/10");
+            photoMetadata.put("f_stop", (14 + random.nextInt(40)) + "/10");
+            photoMetadata.put("iso_speed", 50 + random.nextInt(3200));
+            if (random.nextBoolean()) {
+                photoMetadata.put("latitude", random.nextDouble() * 180 - 90);
+                photoMetadata.put("longitude", random.nextDouble() * 360 - 180);
+            }
+            photo.put("media_metadata", new JSONObject().put("photo_metadata", photoMetadata));
+        }
+        return photo;
+    }
+
+    /**
+     * Writes a video, and makes the JSON that the export would have for it
+     */
+    private JSONObject writeVideo(File activityDir, String path) throws IOException {
+        videosWritten++;
+        boolean large = largeVideoEvery > 0 && videosWritten % largeVideoEvery == 0;
+        writeMedia(activityDir, path, getMp4(), large ? largeVideoSize : 0);
+        JSONObject video = upload(path);
+        video.put("thumbnail", new JSONObject().put("uri", ACTIVITY_DIRECTORY + "/" + path.replace(".mp4", "_thumb.jpg")));
+        if (random.nextBoolean()) {
+            // Videos have video_metadata rather than photo_metadata, so only the upload time gets used
+            video.put("media_metadata", new JSONObject().put("video_metadata", new JSONObject()
+                    .put("upload_timestamp", video.getLong("creation_timestamp"))));
+        }
+        return video;
+    }
+
+    /**
+     * Writes some other file, and makes the JSON that the export would have for it
+     */
+    private JSONObject writeFile(File activityDir, String path) throws IOException {
+        byte[] content = ("Made up file " + path + "\n").getBytes(StandardCharsets.UTF_8);
+        writeMedia(activityDir, path, content, 0);
+        return upload(path);
+    }
+
+    private JSONObject upload(String path) {
+        JSONObject upload = new JSONObject();
+        upload.put("uri", ACTIVITY_DIRECTORY + "/" + path);
+        upload.put("creation_timestamp", nextTimestamp());
+        return upload;
+    }
+
+    /**
+     * @param size The size to pad the file to with a sparse hole, or 0 to leave it as the content
+     */
+    private void writeMedia(File activityDir, String path, byte[] content, long size) throws IOException {
+        File file = new File(activityDir, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content);
+        if (size > content.length) {
+            try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+                sparse.setLength(size);
+            }
+        }
+        mediaWritten++;
+    }
+
+    private long nextTimestamp() {
+        return FIRST_TIMESTAMP + random.nextInt(400_000_000);
+    }
+
+    /**
+     * @return A 16x16 JPEG, made once and written for every photo
+     */
+    private byte[] getJpeg() {
+        if (jpeg == null) {
+            try {
+                BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageIO.write(image, "jpg", bytes);
+                jpeg = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return jpeg;
+    }
+
+    /**
+     * @return An MP4 with no tracks, just the ftyp and a moov holding the movie header, made once and written for every video
+     */
+    private byte[] getMp4() {
+        if (mp4 == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(24 + 8 + 108);
+            // ftyp box
+            buffer.putInt(24).put(ascii("ftyp")).put(ascii("isom")).putInt(0x200).put(ascii("isom")).put(ascii("mp41"));
+            // moov box, holding a version 0 mvhd box
+            buffer.putInt(8 + 108).put(ascii("moov"));
+            buffer.putInt(108).put(ascii("mvhd")).putInt(0);
+            buffer.putInt(0).putInt(0).putInt(1000).putInt(0);
+            buffer.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putInt(0).putInt(0);
+            int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+            for (int value : matrix) {
+                buffer.putInt(value);
+            }
+            for (int i = 0; i < 6; i++) {
+                buffer.putInt(0);
+            }
+            buffer.putInt(1);
+            mp4 = buffer.array();
+        }
+        return mp4;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void write(File file, JSONObject json) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.exit(run(args));
+    }
+
+    /**
+     * @param args The command line arguments
+     * @return The exit code, 0 on success, 2 if the options were not valid
+     */
+    static int run(String[] args) throws IOException {
+        String out = null;
+        int albums = 100;
+        int photosPerAlbum = 100;
+        int conversations = 500;
+        int mediaPerConversation = 200;
+        int textPerMedia = 5;
+        int messagesPerFile = 10000;
+        double e2eeShare = 0.25;
+        double videoShare = 0.1;
+        double fileShare = 0.05;
+        int largeEvery = 0;
+        long largeSize = 1024;
+        long seed = 1;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : "";
+                switch (args[i]) {
+                    case "--out":
+                        out = value;
+                        break;
+                    case "--albums":
+                        albums = Integer.parseInt(value);
+                        break;
+                    case "--photos-per-album":
+                        photosPerAlbum = Integer.parseInt(value);
+                        break;
+                    case "--conversations":
+                        conversations = Integer.parseInt(value);
+                        break;
+                    case "--media-per-conversation":
+                        mediaPerConversation = Integer.parseInt(value);
+                        break;
+                    case "--text-per-media":
+                        textPerMedia = Integer.parseInt(value);
+                        break;
+                    case "--messages-per-file":
+                        messagesPerFile = Integer.parseInt(value);
+                        break;
+                    case "--e2ee-share":
+                        e2eeShare = Double.parseDouble(value);
+                        break;
+                    case "--video-share":
+                        videoShare = Double.parseDouble(value);
+                        break;
+                    case "--file-share":
+                        fileShare = Double.parseDouble(value);
+                        break;
+                    case "--large-every":
+                        largeEvery = Integer.parseInt(value);
+                        break;
+                    case "--large-size":
+                        largeSize = Long.parseLong(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        System.err.println(USAGE);
+                        return 2;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Not a number: " + e.getMessage());
+            return 2;
+        }
+
+        if (out == null || out.isEmpty()) {
+            System.err.println("--out must be given");
+            System.err.println(USAGE);
+            return 2;
+        }
+        File root = new File(out);
+        if (root.exists()) {
+            System.err.println("Already exists: " + root.getPath());
+            return 2;
+        }
+
+        long start = System.nanoTime();
+        ExportGenerator generator = new ExportGenerator(seed)
+                .setAlbums(albums, photosPerAlbum)
+                .setConversations(conversations, mediaPerConversation)
+                .setVariedConversationSizes(true)
+                .setMessages(textPerMedia, messagesPerFile)
+                .setE2eeShare(e2eeShare)
+                .setMediaMix(videoShare, fileShare)
+                .setLargeVideos(largeEvery, largeSize * 1024 * 1024);
+        generator.generate(root);
+        System.out.println("Wrote " + generator.getMediaWritten() + " media files in " + albums + " albums and "
+                + conversations + " conversations to " + root.getPath() + " in "
+                + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s");
+        return 0;
+    }
+
+}
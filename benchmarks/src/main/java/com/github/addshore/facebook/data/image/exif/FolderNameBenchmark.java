@@ -0,0 +1,48 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per album, per conversation and per file name checks
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FolderNameBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Names {
+        @Param({"Album 2015", "Ann_Bob_Carol_Dave", "Ünïcödé: \"trip\" <2019>?* ..."})
+        public String name;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Uris {
+        @Param({"your_facebook_activity/messages/inbox/chat_1/photos/p1.jpg", "your_facebook_activity/messages/inbox/chat_1/videos/v1.MP4"})
+        public String uri;
+    }
+
+    @Benchmark
+    public String sanitizeFolderName(Names names) {
+        return ProcessingEngine.sanitizeFolderName(names.name);
+    }
+
+    @Benchmark
+    public boolean isVideoFile(Uris uris) {
+        return ProcessingEngine.isVideoFile(uris.uri);
+    }
+
+}
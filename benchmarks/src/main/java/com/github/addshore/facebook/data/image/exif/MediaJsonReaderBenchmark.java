@@ -0,0 +1,76 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming an album file and a message file, each holding the given number of media
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaJsonReaderBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int media;
+
+    private File root;
+    private File albumFile;
+    private File messageFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("fbexif-bench").toFile();
+        File postsDir = new ExportGenerator(1).setAlbums(1, media).setConversations(1, media).generate(root);
+        albumFile = new File(postsDir, "album" + File.separator + "0.json");
+        messageFile = new File(postsDir.getParentFile(), "messages/inbox/conversation_0/message_1.json");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Benchmark
+    public void readAlbum(Blackhole blackhole) throws IOException {
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(albumFile)) {
+            MediaJsonReader.MediaEntry entry;
+            while ((entry = reader.next()) != null) {
+                blackhole.consume(entry.data);
+            }
+            blackhole.consume(reader.getString("name"));
+        }
+    }
+
+    @Benchmark
+    public void readMessages(Blackhole blackhole) throws IOException {
+        try (MediaJsonReader reader = MediaJsonReader.forMessages(messageFile)) {
+            MediaJsonReader.MediaEntry entry;
+            while ((entry = reader.next()) != null) {
+                blackhole.consume(entry.data);
+            }
+            blackhole.consume(reader.getJSONArray("participants"));
+        }
+    }
+
+}
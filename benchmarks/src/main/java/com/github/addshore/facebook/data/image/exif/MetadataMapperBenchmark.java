@@ -0,0 +1,72 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Turning the JSON for a photo into a MediaItem, and the MediaItem into the tags to write,
+ * for a photo with full media_metadata and for one with only the upload timestamp
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataMapperBenchmark {
+
+    private static final Consumer<String> NO_DEBUG = message -> { };
+
+    private final File postsDir = new File("export" + File.separator + "your_facebook_activity" + File.separator + "posts");
+    private final ZoneId zone = ZoneId.of("UTC");
+    private JSONObject fullJson;
+    private JSONObject uploadOnlyJson;
+    private MediaItem fullItem;
+    private MediaItem uploadOnlyItem;
+
+    @Setup
+    public void setUp() {
+        fullJson = new JSONObject("{\"uri\": \"posts/myalbum_1234/88888888888888323.jpg\", \"creation_timestamp\": 1437454647,"
+                + " \"media_metadata\": {\"photo_metadata\": {\"camera_make\": \"NIKON CORPORATION\", \"camera_model\": \"NIKON D40X\","
+                + " \"taken_timestamp\": 1437148158, \"modified_timestamp\": 1437454600, \"exposure\": \"1/30\", \"focal_length\": \"400/10\","
+                + " \"f_stop\": \"5/1\", \"iso_speed\": 1000, \"latitude\": 29.925027777778, \"longitude\": -90.088072222222}}}");
+        uploadOnlyJson = new JSONObject("{\"uri\": \"your_facebook_activity/messages/inbox/chat_1/photos/p1.jpg\", \"creation_timestamp\": 1500000000}");
+        fullItem = MediaItem.from("photos", fullJson, postsDir);
+        uploadOnlyItem = MediaItem.from("photos", uploadOnlyJson, postsDir);
+    }
+
+    @Benchmark
+    public MediaItem fromJsonFull() {
+        return MediaItem.from("photos", fullJson, postsDir);
+    }
+
+    @Benchmark
+    public MediaItem fromJsonUploadOnly() {
+        return MediaItem.from("photos", uploadOnlyJson, postsDir);
+    }
+
+    @Benchmark
+    public MetadataMapper.Result mapFull() {
+        return MetadataMapper.map(fullItem, zone, NO_DEBUG);
+    }
+
+    @Benchmark
+    public MetadataMapper.Result mapUploadOnly() {
+        return MetadataMapper.map(uploadOnlyItem, zone, NO_DEBUG);
+    }
+
+}
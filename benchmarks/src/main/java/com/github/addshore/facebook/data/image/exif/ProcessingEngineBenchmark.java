@@ -0,0 +1,111 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole run over a generated export, with StubExifTool standing in for exiftool.
+ * Conversations are a mix of photos, videos and files (which are not processed by default), a quarter of them end to end encrypted.
+ *
+ * This runs the ProcessingEngine that ProcessingTask wraps, as ProcessingTask itself needs a JavaFX toolkit.
+ * Each run starts from the same export, with no index, checkpoint or Processed folder left from the run before.
+ * Batched writes are off unless asked for with -p batchSize=50, they use the same stay open exiftools
+ * but send each file without waiting for the one before it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProcessingEngineBenchmark {
+
+    @Param({"10"})
+    public int albums;
+
+    @Param({"100"})
+    public int photosPerAlbum;
+
+    @Param({"20"})
+    public int conversations;
+
+    @Param({"50"})
+    public int mediaPerConversation;
+
+    @Param({"true", "false"})
+    public boolean copyToProcessed;
+
+    @Param({"true", "false"})
+    public boolean nativeJpegWriter;
+
+    @Param({"1"})
+    public int batchSize;
+
+    private File root;
+    private File postsDir;
+    private File stub;
+    private ExifToolSetup exifToolSetup;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        root = Files.createTempDirectory("fbexif-bench").toFile();
+        postsDir = new ExportGenerator(1)
+                .setAlbums(albums, photosPerAlbum)
+                .setConversations(conversations, mediaPerConversation)
+                .setE2eeShare(0.25)
+                .setMediaMix(0.1, 0.05)
+                .generate(root);
+        stub = StubExifTool.install(root);
+        exifToolSetup = ExifToolSetup.build(stub);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        FileUtils.deleteDirectory(new File(root, "Processed"));
+        FileUtils.deleteDirectory(new File(root, ".facebook-data-image-exif"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Benchmark
+    public int run() {
+        MainOptions mainOptions = new MainOptions(
+                false,
+                false,
+                !copyToProcessed,
+                copyToProcessed,
+                true,
+                true,
+                false
+        )
+                .setExifToolPath(stub)
+                .setBatchSize(batchSize)
+                .setUseIndex(false)
+                .setNativeJpegWriter(nativeJpegWriter);
+        ProcessingListener listener = message -> { };
+        ProcessingEngine engine = new ProcessingEngine(listener, () -> false, postsDir, exifToolSetup.poolSize, "", mainOptions);
+        engine.run();
+        return engine.getFailedCount();
+    }
+
+}
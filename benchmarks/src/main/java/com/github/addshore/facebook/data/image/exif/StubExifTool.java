@@ -0,0 +1,155 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand in for exiftool that answers like it does without touching the files, so benchmarks measure the time
+ * spent in this tool rather than in exiftool, and do not need Perl or exiftool installed.
+ *
+ * Understands -ver, argfiles (-@), the stay open protocol used by SupervisedExifTool including numbered -execute,
+ * the -echo3 and -echo4 markers, and -o for single pass copies (which copies the file as it is).
+ */
+public class StubExifTool {
+
+    static final String VERSION = "12.40";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("-ver")) {
+            System.out.println(VERSION);
+            return;
+        }
+
+        String argFile = null;
+        boolean stayOpen = false;
+        List<String> group = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-stay_open")) {
+                stayOpen = true;
+                i++;
+            } else if (args[i].equals("-@") && i + 1 < args.length) {
+                argFile = args[++i];
+            } else {
+                group.add(args[i]);
+            }
+        }
+        if (argFile == null) {
+            runGroup(group);
+            return;
+        }
+
+        PrintStream out = System.out;
+        try (BufferedReader reader = argFile.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(new File(argFile).toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("-execute")) {
+                    runGroup(group);
+                    group.clear();
+                    if (stayOpen) {
+                        out.println("{ready" + line.substring("-execute".length()) + "}");
+                        out.flush();
+                    }
+                } else if (line.equals("-stay_open")) {
+                    String value = reader.readLine();
+                    if (value == null || value.trim().equalsIgnoreCase("False")) {
+                        return;
+                    }
+                } else {
+                    group.add(line);
+                }
+            }
+        }
+        if (!group.isEmpty() && !stayOpen) {
+            runGroup(group);
+        }
+    }
+
+    /**
+     * Answers a single command, made up of options, tags and file names
+     */
+    private static void runGroup(List<String> group) throws IOException {
+        PrintWriter out = new PrintWriter(System.out);
+        PrintWriter err = new PrintWriter(System.err);
+        List<String> files = new ArrayList<>();
+        List<String> echo3 = new ArrayList<>();
+        List<String> echo4 = new ArrayList<>();
+        String outFile = null;
+        for (int i = 0; i < group.size(); i++) {
+            String arg = group.get(i);
+            if ((arg.equals("-echo3") || arg.equals("-echo4")) && i + 1 < group.size()) {
+                (arg.equals("-echo3") ? echo3 : echo4).add(group.get(++i));
+            } else if (arg.equals("-o") && i + 1 < group.size()) {
+                outFile = group.get(++i);
+            } else if (!arg.startsWith("-")) {
+                files.add(arg);
+            }
+        }
+
+        if (outFile != null && !files.isEmpty()) {
+            File source = new File(files.get(0));
+            if (new File(outFile).exists()) {
+                err.println("Error: '" + outFile + "' already exists - " + source);
+            } else if (source.exists()) {
+                Files.copy(source.toPath(), new File(outFile).toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                out.println("    1 image files created");
+            } else {
+                err.println("Error: File not found - " + source);
+            }
+        } else {
+            int updated = 0;
+            for (String file : files) {
+                if (new File(file).exists()) {
+                    updated++;
+                } else {
+                    err.println("Error: File not found - " + file);
+                }
+            }
+            out.println("    " + updated + " image files updated");
+            if (updated < files.size()) {
+                out.println("    " + (files.size() - updated) + " files weren't updated due to errors");
+            }
+        }
+
+        for (String marker : echo3) {
+            out.println(marker);
+        }
+        for (String marker : echo4) {
+            err.println(marker);
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /**
+     * Writes a script that runs this class with the current classpath, to give to the tool as its exiftool
+     * @param dir The directory to write the script to
+     * @return The script
+     */
+    static File install(File dir) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        boolean windows = ExifToolSetup.isWindows();
+        File script = new File(dir, windows ? "exiftool.cmd" : "exiftool");
+        String command = "\"" + java + "\" -Xshare:auto -XX:TieredStopAtLevel=1 -cp \"" + classPath + "\" " + StubExifTool.class.getName();
+        String content = windows
+                ? "@echo off\r\n" + command + " %*\r\n"
+                : "#!/bin/sh\nexec " + command + " \"$@\"\n";
+        Files.write(script.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true)) {
+            throw new IOException("Could not make " + script + " executable");
+        }
+        return script;
+    }
+
+}
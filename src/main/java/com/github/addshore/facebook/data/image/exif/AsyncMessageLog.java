@@ -0,0 +1,195 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes the output of a run off the task and worker threads.
+ *
+ * Messages go into a fixed size ring buffer, which a single thread drains in batches, writing each batch
+ * to the log file and passing it on to the ProcessingListener in one go.
+ * Adding a message only copies a reference into the buffer, and only waits when the buffer is full,
+ * so a slow console or UI holds the workers back rather than the output growing without limit.
+ * Should the log thread ever die, messages go straight to the listener instead of waiting on it.
+ */
+class AsyncMessageLog implements Closeable {
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private final ProcessingListener listener;
+    private final BufferedWriter logWriter;
+
+    private final String[] messages;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+    // Set if the log thread ends before the log is closed, so nothing waits on it any more
+    private boolean stopped = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final Thread consumer;
+
+    /**
+     * @param listener Receives the messages, always from the log thread
+     * @param logFile The file to also write the messages to, or null for none
+     * @param append If true the log file is added to, rather than replaced
+     * @param header Written to the start of the log file, such as the details of the run, or null
+     * @param capacity The number of messages that can be waiting before adding another waits
+     */
+    AsyncMessageLog(ProcessingListener listener, File logFile, boolean append, String header, int capacity) throws IOException {
+        this.listener = listener;
+        this.messages = new String[capacity];
+        if (logFile != null) {
+            Files.createDirectories(logFile.getParentFile().toPath());
+            this.logWriter = Files.newBufferedWriter(logFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            if (header != null) {
+                this.logWriter.write(header);
+                this.logWriter.newLine();
+            }
+        } else {
+            this.logWriter = null;
+        }
+
+        this.consumer = new Thread(this::drain, "message-log");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Adds a message that is shown to the user
+     */
+    void message(String message) {
+        lock.lock();
+        try {
+            while (count == messages.length && !closed && !stopped) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            if (!stopped) {
+                int tail = (head + count) % messages.length;
+                messages[tail] = message;
+                count++;
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The log thread has died, so the message goes straight to the listener rather than waiting for it forever
+        try {
+            listener.onMessage(message);
+        } catch (RuntimeException ignored) {
+            // The listener is what stopped the log thread, so there is nowhere left to send the message
+        }
+    }
+
+    /**
+     * Run by the log thread, taking everything waiting in the buffer at once until the log is closed
+     */
+    private void drain() {
+        try {
+            String[] batch = new String[messages.length];
+            while (true) {
+                int batchSize;
+                lock.lock();
+                try {
+                    while (count == 0 && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (count == 0) {
+                        return;
+                    }
+                    batchSize = count;
+                    for (int i = 0; i < batchSize; i++) {
+                        int index = (head + i) % messages.length;
+                        batch[i] = messages[index];
+                        messages[index] = null;
+                    }
+                    head = (head + batchSize) % messages.length;
+                    count = 0;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+
+                writeBatch(batch, batchSize);
+            }
+        } finally {
+            // Anything still adding messages must not wait for a thread that is no longer running
+            lock.lock();
+            try {
+                stopped = true;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeBatch(String[] batch, int batchSize) {
+        List<String> lines = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            lines.add(batch[i]);
+            batch[i] = null;
+        }
+        try {
+            listener.onMessages(lines);
+        } catch (RuntimeException e) {
+            // A listener that fails must not stop the log thread, which the workers are waiting on when the buffer is full
+            lines.add("WARNING: Could not pass on output: " + e);
+        }
+
+        if (logWriter != null) {
+            try {
+                for (int i = 0; i < lines.size(); i++) {
+                    logWriter.write(lines.get(i));
+                    logWriter.newLine();
+                }
+                logWriter.flush();
+            } catch (IOException e) {
+                listener.onMessage("WARNING: Could not write to the log file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits for everything already added to be passed on and written, then closes the log file
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (logWriter != null) {
+            logWriter.close();
+        }
+    }
+
+}
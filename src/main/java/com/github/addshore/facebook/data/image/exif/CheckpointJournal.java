@@ -0,0 +1,171 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A journal of the albums, conversations and files that the current run has finished, so that a run
+ * that is cancelled or crashes can be resumed from where it got to.
+ *
+ * Each line holds the kind of thing that was finished and its path within the export.
+ * Lines are written as things finish, but only synced to disk once every few entries and at the end
+ * of each album or conversation, so a crash loses at most the last few files, which are then redone.
+ * The journal is removed once a run completes, as there is then nothing left to resume.
+ */
+class CheckpointJournal implements Closeable {
+
+    static final String FILE_NAME = "checkpoint.journal";
+
+    private static final String ALBUM = "album";
+    private static final String CONVERSATION = "conversation";
+    private static final String FILE = "file";
+
+    private final File exportRoot;
+    private final File journalFile;
+    private final FileChannel channel;
+    private final int syncInterval;
+    // What was done before this run, loaded when resuming, which is all that this run skips
+    private final Set<String> resumed = new HashSet<>();
+    // Everything in the journal, so nothing is written to it twice
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+    private int unsynced = 0;
+
+    private CheckpointJournal(File exportRoot, File journalFile, FileChannel channel, int syncInterval) {
+        this.exportRoot = exportRoot;
+        this.journalFile = journalFile;
+        this.channel = channel;
+        this.syncInterval = Math.max(1, syncInterval);
+    }
+
+    /**
+     * Opens the journal in the state directory
+     * @param exportRoot The root of the facebook export, which paths are relative to
+     * @param stateDir The directory holding the journal file
+     * @param resume If true the existing journal is loaded and added to, otherwise a new journal is started
+     * @param syncInterval The number of entries written between each sync to disk
+     */
+    static CheckpointJournal open(File exportRoot, File stateDir, boolean resume, int syncInterval) throws IOException {
+        Files.createDirectories(stateDir.toPath());
+        File journalFile = new File(stateDir, FILE_NAME);
+        FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        CheckpointJournal journal = new CheckpointJournal(exportRoot, journalFile, channel, syncInterval);
+
+        long validLength = 0;
+        if (resume) {
+            byte[] content = Files.readAllBytes(journalFile.toPath());
+            int lineStart = 0;
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] == '\n') {
+                    journal.resumed.add(new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                    lineStart = i + 1;
+                }
+            }
+            // Anything after the last new line was cut short by a crash, and is dropped
+            validLength = lineStart;
+            journal.completed.addAll(journal.resumed);
+        }
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return journal;
+    }
+
+    /**
+     * @return How many albums, conversations and files were done before resuming
+     */
+    int size() {
+        return resumed.size();
+    }
+
+    boolean isAlbumDone(File albumJsonFile) {
+        return resumed.contains(entryFor(ALBUM, albumJsonFile));
+    }
+
+    /**
+     * Records that every photo in an album has been processed, and syncs the journal
+     */
+    void markAlbumDone(File albumJsonFile) throws IOException {
+        append(entryFor(ALBUM, albumJsonFile));
+        sync();
+    }
+
+    boolean isConversationDone(File conversationDir) {
+        return resumed.contains(entryFor(CONVERSATION, conversationDir));
+    }
+
+    /**
+     * Records that all media in a conversation has been processed, and syncs the journal
+     */
+    void markConversationDone(File conversationDir) throws IOException {
+        append(entryFor(CONVERSATION, conversationDir));
+        sync();
+    }
+
+    /**
+     * @return Whether the file was written before resuming, files written earlier in this run are not counted
+     */
+    boolean isFileDone(File file) {
+        return resumed.contains(entryFor(FILE, file));
+    }
+
+    /**
+     * Records that a file has been written, which is synced along with the next few entries
+     */
+    void markFileDone(File file) throws IOException {
+        append(entryFor(FILE, file));
+    }
+
+    private synchronized void append(String entry) throws IOException {
+        if (!completed.add(entry)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (++unsynced >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Makes sure everything written so far is on disk
+     */
+    synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the run has completed
+     */
+    void finish() throws IOException {
+        synchronized (this) {
+            channel.close();
+        }
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            sync();
+            channel.close();
+        }
+    }
+
+    private String entryFor(String kind, File file) {
+        return kind + "\t" + ProcessedIndex.keyFor(exportRoot, file);
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless entry point, taking the same options as the UI as command line switches.
+ * Nothing here touches JavaFX, so this can run on servers without a display or a JavaFX runtime.
+ */
+public class CommandLine {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java -cp facebook-data-image-exif.jar " + CommandLine.class.getName() + " --dir <export> [options]",
+            "",
+            "  --dir <path>            Path to the extracted facebook data download",
+            "  --zip <file>            Read the download straight from this ZIP file, which can be given more than once",
+            "                          for downloads split over several, and copy to Processed within --dir",
+            "                          (default: the folder of the first ZIP file)",
+            "  --exiftool <path>       Path to the exiftool program (default: found in PATH)",
+            "  --dry-run               Check the export and work out the tags that would be written, without exiftool",
+            "  --copy-to-processed     Copy media to a Processed folder instead of changing the originals",
+            "  --overwrite-originals   Do not keep exiftool _original backups (default unless copying)",
+            "  --single-pass           When copying, have exiftool write each tagged copy straight from the original",
+            "  --no-posts              Do not process posts (albums and photos)",
+            "  --no-messages           Do not process messages",
+            "  --files                 Also process files (all files with creation_timestamp) in messages",
+            "  --no-batch              Wait for exiftool to finish each file before sending it the next",
+            "  --exiftool-timeout <s>  Seconds exiftool is given for each file before it is restarted, files that time out",
+            "                          " + SupervisedExifTool.MAX_ATTEMPTS + " times are skipped and listed at the end (default: " + MainOptions.DEFAULT_EXIFTOOL_TIMEOUT + ")",
+            "  --native-jpeg           Write JPEGs with the built in writer where it can, rather than always using exiftool",
+            "  --sidecar-videos        Write XMP sidecars for videos, only setting the file times of the videos",
+            "  --sidecar-types <list>  Write XMP sidecars for these comma separated file extensions",
+            "  --sidecar-over <MB>     Write XMP sidecars for any file of at least this size",
+            "  --no-index              Reprocess everything, ignoring files recorded by previous runs",
+            "  --output <strategy>     How media gets into the Processed folder: auto (clone large files that get a sidecar",
+            "                          where the filesystem can), copy, clone, or hardlink (link files that get a sidecar) (default: auto)",
+            "  --archive <file>        Write the Processed folder into this ZIP file (or TAR file, if it ends in .tar)",
+            "  --dedup                 Hard link media that shows up more than once to the first copy, rather than copying and",
+            "                          tagging it again, so editing one copy changes them all",
+            "  --resume                Carry on from the checkpoint of a run that was cancelled or crashed",
+            "  --checkpoint-interval <n>  Files written between each sync of the checkpoint (default: " + MainOptions.DEFAULT_CHECKPOINT_INTERVAL + ")",
+            "  --timezone <zone>       Time zone to write the EXIF dates in, such as UTC or Europe/London (default: this computer's)",
+            "  --debug                 Extra output for debugging",
+            "  --help                  Show this help"
+    );
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * @param args The command line arguments
+     * @return The exit code, 0 on success, 1 if some media failed, 2 if the run could not start
+     */
+    static int run(String[] args) {
+        String dirInput = null;
+        String toolInput = null;
+        List<File> zipFiles = new ArrayList<>();
+        File archiveFile = null;
+        boolean debug = false;
+        boolean dryRun = false;
+        boolean copyToProcessed = false;
+        boolean overwriteOriginals = false;
+        boolean processPosts = true;
+        boolean processMessages = true;
+        boolean processFiles = false;
+        boolean batchWrites = true;
+        boolean useIndex = true;
+        boolean linkDuplicates = false;
+        OutputStrategy outputStrategy = OutputStrategy.AUTO;
+        boolean resume = false;
+        boolean singlePassCopy = false;
+        boolean nativeJpegWriter = false;
+        List<String> sidecarExtensions = new ArrayList<>();
+        long sidecarMinimumSize = 0;
+        int checkpointInterval = MainOptions.DEFAULT_CHECKPOINT_INTERVAL;
+        int exifToolTimeout = MainOptions.DEFAULT_EXIFTOOL_TIMEOUT;
+        ZoneId timeZone = ZoneId.systemDefault();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir":
+                    dirInput = ++i < args.length ? args[i] : null;
+                    break;
+                case "--zip":
+                    if (++i < args.length) {
+                        zipFiles.add(new File(args[i]));
+                    }
+                    break;
+                case "--archive":
+                    archiveFile = ++i < args.length ? new File(args[i]) : null;
+                    break;
+                case "--exiftool":
+                    toolInput = ++i < args.length ? args[i] : null;
+                    break;
+                case "--debug":
+                    debug = true;
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "--copy-to-processed":
+                    copyToProcessed = true;
+                    break;
+                case "--overwrite-originals":
+                    overwriteOriginals = true;
+                    break;
+                case "--no-posts":
+                    processPosts = false;
+                    break;
+                case "--no-messages":
+                    processMessages = false;
+                    break;
+                case "--files":
+                    processFiles = true;
+                    break;
+                case "--no-batch":
+                    batchWrites = false;
+                    break;
+                case "--exiftool-timeout":
+                    try {
+                        exifToolTimeout = Integer.parseInt(++i < args.length ? args[i] : "");
+                    } catch (NumberFormatException e) {
+                        exifToolTimeout = 0;
+                    }
+                    if (exifToolTimeout < 1) {
+                        System.err.println("--exiftool-timeout must be a number of seconds above 0");
+                        return 2;
+                    }
+                    break;
+                case "--no-index":
+                    useIndex = false;
+                    break;
+                case "--output":
+                    try {
+                        outputStrategy = OutputStrategy.fromName(++i < args.length ? args[i] : "");
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("--output must be one of auto, copy, clone or hardlink");
+                        return 2;
+                    }
+                    break;
+                case "--dedup":
+                    linkDuplicates = true;
+                    break;
+                case "--native-jpeg":
+                    nativeJpegWriter = true;
+                    break;
+                case "--sidecar-videos":
+                    sidecarExtensions.addAll(ProcessingEngine.VIDEO_EXTENSIONS);
+                    break;
+                case "--sidecar-types":
+                    if (++i < args.length) {
+                        for (String extension : args[i].split(",")) {
+                            if (!extension.trim().isEmpty()) {
+                                sidecarExtensions.add(extension.trim().replaceFirst("^\\.", ""));
+                            }
+                        }
+                    }
+                    break;
+                case "--sidecar-over":
+                    try {
+                        sidecarMinimumSize = Long.parseLong(++i < args.length ? args[i] : "") * 1024 * 1024;
+                    } catch (NumberFormatException e) {
+                        sidecarMinimumSize = 0;
+                    }
+                    if (sidecarMinimumSize < 1) {
+                        System.err.println("--sidecar-over must be a number of MB above 0");
+                        return 2;
+                    }
+                    break;
+                case "--single-pass":
+                    singlePassCopy = true;
+                    break;
+                case "--resume":
+                    resume = true;
+                    break;
+                case "--checkpoint-interval":
+                    try {
+                        checkpointInterval = Integer.parseInt(++i < args.length ? args[i] : "");
+                    } catch (NumberFormatException e) {
+                        checkpointInterval = 0;
+                    }
+                    if (checkpointInterval < 1) {
+                        System.err.println("--checkpoint-interval must be a number above 0");
+                        return 2;
+                    }
+                    break;
+                case "--timezone":
+                    try {
+                        timeZone = ZoneId.of(++i < args.length ? args[i] : "");
+                    } catch (DateTimeException e) {
+                        System.err.println("--timezone must be a time zone such as UTC, +01:00 or Europe/London");
+                        return 2;
+                    }
+                    break;
+                case "--help":
+                    System.out.println(USAGE);
+                    return 0;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println(USAGE);
+                    return 2;
+            }
+        }
+
+        if (!zipFiles.isEmpty()) {
+            if (dryRun) {
+                System.err.println("--dry-run can not be used with --zip");
+                return 2;
+            }
+            for (File zipFile : zipFiles) {
+                if (!zipFile.isFile()) {
+                    System.err.println("ZIP file does not exist: " + zipFile.getPath());
+                    return 2;
+                }
+            }
+            // The originals stay in the ZIP files, so media can only be copied out of them
+            copyToProcessed = true;
+            if (dirInput == null) {
+                dirInput = zipFiles.get(0).getAbsoluteFile().getParent();
+            }
+        }
+
+        if (archiveFile != null) {
+            if (dryRun || resume) {
+                System.err.println("--archive can not be used with --dry-run or --resume");
+                return 2;
+            }
+            // The archive is written from scratch, so there is nothing to skip or link to in it
+            copyToProcessed = true;
+            useIndex = false;
+            linkDuplicates = false;
+        }
+
+        // Match the UI, where overwriting the originals is the default mode
+        if (!copyToProcessed) {
+            overwriteOriginals = true;
+        }
+
+        if (dirInput == null) {
+            System.err.println("--dir must be given");
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        // Dry runs never start exiftool, so it is not needed at all
+        File exiftoolFile = null;
+        if (!dryRun) {
+            if (toolInput != null) {
+                exiftoolFile = new File(toolInput);
+            } else {
+                try {
+                    exiftoolFile = ExifToolSetup.findOnPath();
+                } catch (FileNotFoundException e) {
+                    System.err.println("Can't find exiftool in your PATH, use --exiftool to give its location");
+                    return 2;
+                }
+            }
+            if (!exiftoolFile.exists()) {
+                System.err.println("Can't find exiftool file " + exiftoolFile.getPath());
+                return 2;
+            }
+
+            // If on Windows and we have been given the dir instead of exe file, add the exe to the path
+            if (ExifToolSetup.isWindows() && exiftoolFile.isDirectory()) {
+                exiftoolFile = new File(exiftoolFile.getPath() + File.separator + "exiftool.exe");
+            }
+
+            // The standard download from the exiftool website gives you exiftool(-k).exe :(
+            if (ExifToolSetup.isWindows() && !exiftoolFile.getPath().endsWith("exiftool.exe")) {
+                System.err.println("Please rename your " + exiftoolFile.getPath() + " to exiftool.exe");
+                return 2;
+            }
+        }
+
+        File dirFile = ProcessingEngine.getPostsDirFromInput(new File(dirInput));
+        // The JSON of a ZIP export is only extracted once the run starts
+        if (zipFiles.isEmpty() && (!dirFile.exists() || !dirFile.isDirectory())) {
+            System.err.println("Directory does not exist: " + dirFile.getPath());
+            return 2;
+        }
+
+        MainOptions mainOptions = new MainOptions(
+                debug,
+                dryRun,
+                overwriteOriginals,
+                copyToProcessed,
+                processPosts,
+                processMessages,
+                processFiles
+        )
+                .setExifToolPath(exiftoolFile)
+                .setBatchSize(batchWrites ? MainOptions.DEFAULT_BATCH_SIZE : 1)
+                .setExifToolTimeout(exifToolTimeout)
+                .setUseIndex(useIndex)
+                .setResume(resume)
+                .setSinglePassCopy(singlePassCopy)
+                .setNativeJpegWriter(nativeJpegWriter)
+                .setSidecarExtensions(sidecarExtensions)
+                .setSidecarMinimumSize(sidecarMinimumSize)
+                .setCheckpointInterval(checkpointInterval)
+                .setTimeZone(timeZone)
+                .setLinkDuplicates(linkDuplicates)
+                .setOutputStrategy(outputStrategy)
+                .setZipInputs(zipFiles)
+                .setArchiveOutput(archiveFile);
+
+        ExifToolSetup exifToolSetup = dryRun ? null : ExifToolSetup.build(exiftoolFile);
+
+        String initialStateMessage = "Version: " + Main.VERSION + "\n" +
+                "OS: " + System.getProperty("os.name") + "\n" +
+                (exifToolSetup == null ? "Exiftool: not used for dry runs\n" :
+                        "Exiftool: " + exifToolSetup.version + "\n" +
+                        "Exiftool Poolsize: " + exifToolSetup.poolSize + "\n") +
+                (zipFiles.isEmpty() ? "" : "ZIP files: " + zipFiles.size() + "\n") +
+                "Debug: " + debug + "\n" +
+                "Dry run: " + dryRun + "\n" +
+                "File processing mode: " + (copyToProcessed ? "Copy to Processed folder" : "Overwrite originals") + "\n" +
+                "Process posts: " + processPosts + "\n" +
+                "Process messages: " + processMessages + "\n" +
+                "Process files: " + processFiles + "\n" +
+                "Batch exiftool writes: " + batchWrites + "\n" +
+                "Exiftool timeout: " + exifToolTimeout + "s\n" +
+                "Built in JPEG writer: " + nativeJpegWriter + "\n" +
+                "XMP sidecars for: " + (sidecarExtensions.isEmpty() ? "none" : String.join(",", sidecarExtensions))
+                        + (sidecarMinimumSize > 0 ? " and files of " + (sidecarMinimumSize / 1024 / 1024) + "MB or more" : "") + "\n" +
+                "Skip unchanged files: " + useIndex + "\n" +
+                "Link duplicates: " + linkDuplicates + "\n" +
+                "Output strategy: " + (copyToProcessed ? outputStrategy.name().toLowerCase() : "not copying") + "\n" +
+                "Archive: " + (archiveFile == null ? "none" : archiveFile.getPath()) + "\n" +
+                "Resume: " + resume + "\n" +
+                "Single pass copy: " + (copyToProcessed && singlePassCopy) + "\n" +
+                "Time zone: " + timeZone.getId() + "\n" +
+                "-------------------------------------------------";
+        System.out.println(initialStateMessage);
+
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        CountDownLatch finished = new CountDownLatch(1);
+        ProcessingListener listener = new ProcessingListener() {
+            @Override
+            public void onMessage(String message) {
+                System.out.println(message);
+            }
+
+            @Override
+            public void onMessages(List<String> messages) {
+                // One write for the whole batch, rather than a flush per line
+                System.out.print(String.join(System.lineSeparator(), messages) + System.lineSeparator());
+            }
+        };
+        Engine engine = exifToolSetup == null
+                ? new DryRunEngine(listener, cancelled::get, dirFile, initialStateMessage, mainOptions)
+                : new ProcessingEngine(listener, cancelled::get, dirFile, exifToolSetup.poolSize, initialStateMessage, mainOptions);
+
+        // On Ctrl+C let the files in progress finish and exiftool close before exiting
+        Thread shutdownHook = new Thread(() -> {
+            cancelled.set(true);
+            try {
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            engine.run();
+        } finally {
+            finished.countDown();
+        }
+
+        if (cancelled.get()) {
+            return 2;
+        }
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        return engine.getFailedCount() == 0 ? 0 : 1;
+    }
+
+}
@@ -3,7 +3,8 @@ package com.github.addshore.facebook.data.image.exif;
 import com.thebuzzmedia.exiftool.Tag;
 
 public enum CustomTag implements Tag {
-    EXPOSURE("EXPOSURE"),
+    // The exposure values from facebook are exposure times, such as 1/30
+    EXPOSURE("ExposureTime"),
     FNUMBER("FNumber"),
     MODIFYDATE("ModifyDate");
 
@@ -0,0 +1,201 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks what processing an export would do, without changing anything or starting exiftool.
+ *
+ * Works from the WorkPlan, resolving every file and working out the exact tags that processing would write
+ * with the same MetadataMapper, then reports the totals. Albums and conversations are checked in parallel.
+ */
+class DryRunEngine implements Engine {
+
+    private final ProcessingListener listener;
+    private final BooleanSupplier cancelled;
+    private final File dir;
+    private final String initialStateMessage;
+    private final MainOptions mainOptions;
+    private AsyncMessageLog messageLog;
+
+    private final ProgressTracker progress = new ProgressTracker();
+    private final ProgressTracker.Stage checkingStage = progress.addStage("Checking");
+
+    private final AtomicInteger statTagged = new AtomicInteger();
+    private final AtomicInteger statMissing = new AtomicInteger();
+    private final AtomicInteger statNotWritable = new AtomicInteger();
+    private final AtomicInteger statNoMetadata = new AtomicInteger();
+    private final AtomicInteger statSidecars = new AtomicInteger();
+    private final AtomicLong statBytes = new AtomicLong();
+    private final Map<String, AtomicInteger> tagCounts = new ConcurrentHashMap<>();
+
+    /**
+     * @param listener Receives all output
+     * @param cancelled Checked between files, returning true stops the run
+     * @param dir The posts directory of the export
+     * @param initialStateMessage Details of the run
+     * @param mainOptions The options that a real run would use
+     */
+    DryRunEngine(ProcessingListener listener, BooleanSupplier cancelled, File dir, String initialStateMessage, MainOptions mainOptions) {
+        this.listener = listener;
+        this.cancelled = cancelled;
+        this.dir = dir;
+        this.initialStateMessage = initialStateMessage;
+        this.mainOptions = mainOptions;
+    }
+
+    private void appendMessage(String string) {
+        messageLog.message(string);
+    }
+
+    private void appendDebugMessage(String string) {
+        if (this.mainOptions.isDebugMode()) {
+            messageLog.message("debug: " + string);
+        }
+    }
+
+    @Override
+    public ProgressTracker getProgress() {
+        return progress;
+    }
+
+    @Override
+    public int getFailedCount() {
+        return statMissing.get() + statNotWritable.get() + statNoMetadata.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Nothing is written during a dry run, so there is no log file
+            messageLog = new AsyncMessageLog(listener, null, false, initialStateMessage, AsyncMessageLog.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            listener.onMessage("ERROR: " + e.getMessage());
+            return;
+        }
+
+        appendMessage("DRY RUN: Nothing will be changed, and exiftool is not used");
+        appendMessage("Planning...");
+        // Nothing is written to the export either, so the plan goes in a temporary file that is removed at the end
+        File manifestFile = null;
+        try {
+            manifestFile = File.createTempFile("facebook-data-image-exif-", "-" + WorkPlan.MANIFEST_FILE_NAME);
+            WorkPlan workPlan = WorkPlan.scan(dir, mainOptions, manifestFile);
+            checkingStage.expect(workPlan.getMediaCount());
+            appendMessage("Found " + workPlan.getMediaCount() + " media files (" + ProgressTracker.formatBytes(workPlan.getBytes()) + ") in "
+                    + workPlan.getAlbums().size() + " albums and " + (workPlan.getUnitCount() - workPlan.getAlbums().size()) + " conversations");
+
+            workPlan.getUnits().parallelStream().forEach(unit -> {
+                if (!cancelled.getAsBoolean()) {
+                    checkUnit(workPlan, unit);
+                }
+            });
+        } catch (IOException e) {
+            appendMessage("ERROR: Could not plan the run: " + e.getMessage());
+            closeMessageLog();
+            return;
+        } finally {
+            if (manifestFile != null && !manifestFile.delete()) {
+                manifestFile.deleteOnExit();
+            }
+        }
+
+        if (cancelled.getAsBoolean()) {
+            appendMessage("Task cancelled, run not complete");
+        } else {
+            appendMessage("-------------------------------------------------");
+            appendMessage("Dry run complete");
+            appendMessage("Files that would be tagged: " + statTagged.get() + " (" + ProgressTracker.formatBytes(statBytes.get()) + ")");
+            if (statSidecars.get() != 0) {
+                appendMessage("Of which would get an XMP sidecar: " + statSidecars.get());
+            }
+            if (statMissing.get() != 0) {
+                appendMessage("Files missing from the export: " + statMissing.get());
+            }
+            if (statNotWritable.get() != 0) {
+                appendMessage("Files that are not writable: " + statNotWritable.get());
+            }
+            if (statNoMetadata.get() != 0) {
+                appendMessage("Files with no meta data: " + statNoMetadata.get());
+            }
+            Map<String, AtomicInteger> sortedTagCounts = new TreeMap<>(tagCounts);
+            for (Map.Entry<String, AtomicInteger> tagCount : sortedTagCounts.entrySet()) {
+                appendMessage("Tag " + tagCount.getKey() + " would be written to " + tagCount.getValue().get() + " files");
+            }
+        }
+
+        closeMessageLog();
+    }
+
+    private void closeMessageLog() {
+        try {
+            messageLog.close();
+        } catch (IOException ignored) {
+            // There is no log file to fail to close
+        }
+    }
+
+    /**
+     * Checks each media item in an album or conversation
+     */
+    private void checkUnit(WorkPlan workPlan, WorkPlan.Unit unit) {
+        try (WorkPlan.UnitReader reader = workPlan.read(unit)) {
+            WorkPlan.PlannedMedia item;
+            while ((item = reader.next()) != null) {
+                checkingStage.finished(checkMedia(item, item.item));
+                if (cancelled.getAsBoolean()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            appendMessage("ERROR: Failed to read the plan for " + unit.source.getName() + ": " + e.getMessage());
+            return;
+        }
+        for (String error : unit.errors) {
+            appendMessage("ERROR: Failed to read " + unit.source.getName() + ": " + error);
+        }
+    }
+
+    /**
+     * @return Whether processing would succeed for the media item
+     */
+    private boolean checkMedia(WorkPlan.PlannedMedia item, MediaItem media) {
+        if (!item.exists()) {
+            appendMessage("ERROR: Source file does not exist: " + item.file.getPath());
+            statMissing.incrementAndGet();
+            return false;
+        }
+        if (!mainOptions.shouldCopyToNewFolders() && !item.file.canWrite()) {
+            appendMessage("ERROR: the file is not writable: " + item.file.getPath());
+            statNotWritable.incrementAndGet();
+            return false;
+        }
+
+        MetadataMapper.Result metadata = media.getMetadata(mainOptions.getTimeZone(), this::appendDebugMessage);
+        if (metadata == null) {
+            appendDebugMessage("No meta data found for " + item.uri);
+            statNoMetadata.incrementAndGet();
+            return false;
+        }
+
+        appendDebugMessage("DRY RUN: Would write " + metadata.exifData.size() + " tags to " + item.uri);
+        for (Tag tag : metadata.exifData.keySet()) {
+            tagCounts.computeIfAbsent(tag.getName(), name -> new AtomicInteger()).incrementAndGet();
+        }
+        if (mainOptions.shouldUseSidecar(item.file.getName(), item.size)) {
+            statSidecars.incrementAndGet();
+        }
+        statTagged.incrementAndGet();
+        statBytes.addAndGet(item.size);
+        return true;
+    }
+
+}
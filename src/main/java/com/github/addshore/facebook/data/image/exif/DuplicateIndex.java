@@ -0,0 +1,147 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The files written during a run, so that the same media showing up again with the same tags can be
+ * linked to the file already written, rather than copied and tagged again.
+ *
+ * Media is the same when it comes from the same source file, or from a source with the same content.
+ * Sources are only hashed once another written file has the same size, so most files are never read
+ * for this, and no source is hashed more than once.
+ */
+class DuplicateIndex {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A file that was written, and what it was written from
+     */
+    private static class Written {
+        final File source;
+        final File target;
+        final String tagsHash;
+
+        Written(File source, File target, String tagsHash) {
+            this.source = source;
+            this.target = target;
+            this.tagsHash = tagsHash;
+        }
+    }
+
+    private final SourceFiles sourceFiles;
+    private final Map<String, Written> bySource = new ConcurrentHashMap<>();
+    private final Map<Long, List<Written>> bySize = new ConcurrentHashMap<>();
+    private final Map<File, String> contentHashes = new ConcurrentHashMap<>();
+
+    /**
+     * @param sourceFiles Where the media files are read from
+     */
+    DuplicateIndex(SourceFiles sourceFiles) {
+        this.sourceFiles = sourceFiles;
+    }
+
+    /**
+     * Records a file that has been written, once it is complete
+     * @param source The file the media came from
+     * @param target The file that was written, which is the same as source when not copying
+     * @param tagsHash The hash of the tags written to it
+     */
+    void add(File source, File target, String tagsHash) {
+        Written written = new Written(source, target, tagsHash);
+        bySource.putIfAbsent(source.getAbsolutePath() + "\t" + tagsHash, written);
+        // A file written in place no longer has the content or size of its source, so can only be found by its path
+        if (!source.equals(target)) {
+            bySize.computeIfAbsent(sourceFiles.size(source), size -> new CopyOnWriteArrayList<>()).add(written);
+        }
+    }
+
+    /**
+     * @param source The file the media comes from
+     * @param tagsHash The hash of the tags that would be written to it
+     * @return A file already written this run from the same source with the same tags, or null if there is none
+     */
+    File findWrittenFrom(File source, String tagsHash) {
+        Written sameSource = bySource.get(source.getAbsolutePath() + "\t" + tagsHash);
+        return sameSource != null && sameSource.target.exists() ? sameSource.target : null;
+    }
+
+    /**
+     * @param source The file the media comes from
+     * @param tagsHash The hash of the tags that would be written to it
+     * @return A file already written this run with the same content and tags, or null if there is none
+     */
+    File findWritten(File source, String tagsHash) throws IOException {
+        File sameSource = findWrittenFrom(source, tagsHash);
+        if (sameSource != null) {
+            return sameSource;
+        }
+
+        List<Written> sameSize = bySize.get(sourceFiles.size(source));
+        if (sameSize == null) {
+            return null;
+        }
+        String contentHash = null;
+        for (Written written : sameSize) {
+            if (!written.tagsHash.equals(tagsHash) || !written.target.exists()) {
+                continue;
+            }
+            if (contentHash == null) {
+                contentHash = getContentHash(source);
+            }
+            if (contentHash.equals(getContentHash(written.source))) {
+                return written.target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The hash of the content of a source file, which is only worked out the first time it is asked for
+     */
+    private String getContentHash(File source) throws IOException {
+        try {
+            return contentHashes.computeIfAbsent(source, file -> {
+                try {
+                    try (InputStream input = sourceFiles.open(file)) {
+                        return hashContent(input);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static String hashContent(InputStream input) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.github.addshore.facebook.data.image.exif;
+
+/**
+ * A run over a facebook export, either processing it or just checking what processing would do
+ */
+interface Engine {
+
+    /**
+     * Runs the whole task, returning once everything has finished (or been cancelled)
+     */
+    void run();
+
+    /**
+     * @return The progress of the run, which can be read from any thread while it is running
+     */
+    ProgressTracker getProgress();
+
+    /**
+     * @return The number of media files that failed (or would fail) to process
+     */
+    int getFailedCount();
+
+}
@@ -0,0 +1,48 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the unix timestamps from the export into EXIF dates and file times.
+ *
+ * The formatter is immutable, so it is shared by every worker thread, and file times come straight from the
+ * timestamp rather than by parsing the EXIF date back.
+ */
+final class ExifTimestamps {
+
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss", Locale.ROOT);
+
+    private ExifTimestamps() {
+    }
+
+    /**
+     * @param epochSeconds A unix timestamp, in seconds
+     * @param zone The time zone the EXIF date is written in, as EXIF dates have no zone of their own
+     * @return The EXIF formatted date, such as 2017:07:14 02:40:00
+     */
+    static String format(long epochSeconds, ZoneId zone) {
+        return EXIF_DATE.format(Instant.ofEpochSecond(epochSeconds).atZone(zone));
+    }
+
+    /**
+     * @param zone The time zone the EXIF date is written in
+     * @return The current time as an EXIF formatted date
+     */
+    static String now(ZoneId zone) {
+        return EXIF_DATE.format(Instant.now().atZone(zone));
+    }
+
+    /**
+     * @param epochSeconds A unix timestamp, in seconds
+     * @return The timestamp as a file time, which is the same instant whatever zone the EXIF date is written in
+     */
+    static FileTime toFileTime(long epochSeconds) {
+        return FileTime.from(epochSeconds, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds exiftool and works out how many of it to run, shared by the UI and the command line.
+ * The exiftool processes themselves are started by the ProcessingEngine, one stay open process per worker.
+ */
+class ExifToolSetup {
+
+    private static final long VERSION_TIMEOUT_SECONDS = 30;
+
+    final String version;
+    final int poolSize;
+
+    private ExifToolSetup(String version, int poolSize) {
+        this.version = version;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Checks the version of exiftool, and picks a pool size of one exiftool per processor
+     * @param exiftoolFile The exiftool executable
+     */
+    static ExifToolSetup build(File exiftoolFile) {
+        return new ExifToolSetup(readVersion(exiftoolFile), Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return The version exiftool reports, or "unknown" if it can not be run
+     */
+    private static String readVersion(File exiftoolFile) {
+        try {
+            Process process = new ProcessBuilder(exiftoolFile.getPath(), "-ver").redirectErrorStream(true).start();
+            String version;
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                version = output.readLine();
+            }
+            if (!process.waitFor(VERSION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+            return version == null ? "unknown" : version.trim();
+        } catch (IOException e) {
+            return "unknown";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "unknown";
+        }
+    }
+
+    /**
+     * Looks for an exiftool executable in the system PATH
+     * where an exiftool executable would be any file that without an extension has the string name "exiftool"
+     *
+     * @return File
+     */
+    static File findOnPath() throws FileNotFoundException {
+        for (String dirString : System.getenv("PATH").split(File.pathSeparator)) {
+            File dir = new File(dirString);
+            if (dir.isDirectory()) {
+                for (File file : Objects.requireNonNull(dir.listFiles())) {
+                    String fileWithoutExt = FilenameUtils.removeExtension(file.getName());
+                    if (fileWithoutExt.equals("exiftool")) {
+                        return file;
+                    }
+                }
+            }
+        }
+        throw new FileNotFoundException();
+    }
+
+    static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("windows");
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * What the filesystems media is written to can do, worked out once per filesystem by trying it.
+ *
+ * Java has no way to ask for a copy on write clone (the FICLONE ioctl on Linux, clonefile on macOS),
+ * so clones are made by cp, which asks for one and fails rather than copying when it can not.
+ */
+class FileSystemCapabilities {
+
+    private static final long PROCESS_TIMEOUT_SECONDS = 60;
+
+    /**
+     * What a single filesystem can do
+     */
+    private static class Capabilities {
+        final boolean hardLinks;
+        final boolean clones;
+
+        Capabilities(boolean hardLinks, boolean clones) {
+            this.hardLinks = hardLinks;
+            this.clones = clones;
+        }
+    }
+
+    private final Map<Path, FileStore> storesByDirectory = new ConcurrentHashMap<>();
+    private final Map<FileStore, Capabilities> capabilities = new ConcurrentHashMap<>();
+    private final Consumer<String> log;
+
+    /**
+     * @param log Told what each filesystem can do, the first time it is probed
+     */
+    FileSystemCapabilities(Consumer<String> log) {
+        this.log = log;
+    }
+
+    /**
+     * @return Whether source can be hard linked into destDir
+     */
+    boolean canHardLink(File source, File destDir) {
+        Capabilities shared = getShared(source, destDir);
+        return shared != null && shared.hardLinks;
+    }
+
+    /**
+     * @return Whether source can be cloned into destDir
+     */
+    boolean canClone(File source, File destDir) {
+        Capabilities shared = getShared(source, destDir);
+        return shared != null && shared.clones;
+    }
+
+    /**
+     * @return What the filesystem holding both source and destDir can do, or null if they are on different filesystems
+     */
+    private Capabilities getShared(File source, File destDir) {
+        try {
+            FileStore sourceStore = getStore(source.getAbsoluteFile().getParentFile().toPath());
+            FileStore destStore = getStore(destDir.getAbsoluteFile().toPath());
+            if (!sourceStore.equals(destStore)) {
+                return null;
+            }
+            return capabilities.computeIfAbsent(destStore, store -> probe(store, destDir));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private FileStore getStore(Path directory) throws IOException {
+        FileStore store = storesByDirectory.get(directory);
+        if (store == null) {
+            // Looking up a FileStore reads the mount table, so it is only done once per directory
+            store = Files.getFileStore(directory);
+            storesByDirectory.put(directory, store);
+        }
+        return store;
+    }
+
+    /**
+     * Tries a hard link and a clone of a scratch file in destDir
+     */
+    private Capabilities probe(FileStore store, File destDir) {
+        File probe = new File(destDir, ".facebook-data-image-exif-probe");
+        File linked = new File(destDir, ".facebook-data-image-exif-probe-link");
+        File cloned = new File(destDir, ".facebook-data-image-exif-probe-clone");
+        boolean hardLinks = false;
+        boolean clones = false;
+        try {
+            Files.write(probe.toPath(), new byte[]{1});
+            try {
+                Files.createLink(linked.toPath(), probe.toPath());
+                hardLinks = true;
+            } catch (IOException | UnsupportedOperationException e) {
+                hardLinks = false;
+            }
+            try {
+                cloneFile(probe, cloned);
+                clones = true;
+            } catch (IOException e) {
+                clones = false;
+            }
+        } catch (IOException e) {
+            // Nothing can be written here, so copies will fail with a clearer error than this
+        } finally {
+            try {
+                Files.deleteIfExists(probe.toPath());
+                Files.deleteIfExists(linked.toPath());
+                Files.deleteIfExists(cloned.toPath());
+            } catch (IOException e) {
+                // Left behind, and written over by the next probe
+            }
+        }
+        log.accept("Output filesystem " + store.name() + " (" + store.type() + "): hard links " + (hardLinks ? "yes" : "no") + ", clones " + (clones ? "yes" : "no"));
+        return new Capabilities(hardLinks, clones);
+    }
+
+    /**
+     * Makes dest a copy on write clone of source, keeping the file times of source
+     * @throws IOException if the filesystem or the OS can not clone the file, in which case dest is not made
+     */
+    static void cloneFile(File source, File dest) throws IOException {
+        // cp would clone into a file that is already there, which may be a hard link to an original
+        Files.deleteIfExists(dest.toPath());
+        String os = System.getProperty("os.name").toLowerCase();
+        ProcessBuilder builder;
+        if (os.contains("linux")) {
+            builder = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", "--", source.getAbsolutePath(), dest.getAbsolutePath());
+        } else if (os.contains("mac")) {
+            builder = new ProcessBuilder("cp", "-c", "-p", source.getAbsolutePath(), dest.getAbsolutePath());
+        } else {
+            throw new IOException("Clones are not supported on " + System.getProperty("os.name"));
+        }
+        Process process = builder.redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (!process.waitFor(PROCESS_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Timed out cloning " + source.getName());
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted cloning " + source.getName());
+        }
+        if (process.exitValue() != 0) {
+            Files.deleteIfExists(dest.toPath());
+            throw new IOException("Could not clone " + source.getName());
+        }
+    }
+
+}
@@ -0,0 +1,819 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the tags that this tool sets straight into the EXIF segment of a JPEG, without running exiftool.
+ *
+ * Only the APP1 EXIF segment is rebuilt, merging the new tags into any EXIF that is already there.
+ * Everything from the start of the image data onwards is copied across with FileChannel.transferTo, without being decoded.
+ * Anything this can not handle safely, such as EXIF containing maker notes, is left alone so that exiftool can write it instead.
+ *
+ * When every tag is already in the file with room for the new value, such as the fixed length dates of a file
+ * that has been processed before, the values can instead be overwritten in place with positional writes to the file.
+ */
+class JpegExifWriter {
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+    // Size in bytes of each TIFF field type, indexed by type
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_X_RESOLUTION = 0x011A;
+    private static final int TAG_Y_RESOLUTION = 0x011B;
+    private static final int TAG_RESOLUTION_UNIT = 0x0128;
+    private static final int TAG_YCBCR_POSITIONING = 0x0213;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_INTEROP_IFD = 0xA005;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_GPS_VERSION = 0x0000;
+
+    // Tags holding offsets that would be broken by moving the EXIF data around
+    private static final Set<Integer> UNSUPPORTED_TAGS = new HashSet<>(Arrays.asList(
+            0x0111, // StripOffsets
+            0x0144, // TileOffsets
+            0x014A, // SubIFDs
+            0x927C  // MakerNote
+    ));
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+    private static final int MAX_HEADER_SIZE = 16 * 1024 * 1024;
+    private static final Pattern DATE = Pattern.compile("\\d{4}:\\d{2}:\\d{2} \\d{2}:\\d{2}:\\d{2}");
+
+    private enum Directory {IFD0, EXIF, GPS}
+
+    /**
+     * Where each tag name that can be written lives in the EXIF data
+     */
+    private static class TagLocation {
+        final Directory directory;
+        final int tag;
+
+        TagLocation(Directory directory, int tag) {
+            this.directory = directory;
+            this.tag = tag;
+        }
+    }
+
+    private static final Map<String, TagLocation> TAGS = new HashMap<>();
+
+    static {
+        TAGS.put("Make", new TagLocation(Directory.IFD0, 0x010F));
+        TAGS.put("Model", new TagLocation(Directory.IFD0, 0x0110));
+        TAGS.put("ModifyDate", new TagLocation(Directory.IFD0, 0x0132));
+        TAGS.put("ExposureTime", new TagLocation(Directory.EXIF, 0x829A));
+        TAGS.put("FNumber", new TagLocation(Directory.EXIF, 0x829D));
+        TAGS.put("ISO", new TagLocation(Directory.EXIF, 0x8827));
+        TAGS.put("DateTimeOriginal", new TagLocation(Directory.EXIF, 0x9003));
+        TAGS.put("FocalLength", new TagLocation(Directory.EXIF, 0x920A));
+        TAGS.put("GPSLatitudeRef", new TagLocation(Directory.GPS, 0x0001));
+        TAGS.put("GPSLatitude", new TagLocation(Directory.GPS, 0x0002));
+        TAGS.put("GPSLongitudeRef", new TagLocation(Directory.GPS, 0x0003));
+        TAGS.put("GPSLongitude", new TagLocation(Directory.GPS, 0x0004));
+        TAGS.put("GPSAltitudeRef", new TagLocation(Directory.GPS, 0x0005));
+        TAGS.put("GPSAltitude", new TagLocation(Directory.GPS, 0x0006));
+    }
+
+    /**
+     * Thrown when a file or value is not something this writer can handle, so exiftool should be used instead
+     */
+    private static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Entry {
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(int type, int count, byte[] value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private static class Ifd {
+        final TreeMap<Integer, Entry> entries = new TreeMap<>();
+        final TreeMap<Integer, Ifd> children = new TreeMap<>();
+        int nextOffset = 0;
+        byte[] thumbnail = null;
+
+        int entryCount() {
+            return entries.size() + children.size() + (thumbnail != null ? 2 : 0);
+        }
+    }
+
+    private static class Segment {
+        final int marker;
+        final byte[] payload;
+
+        Segment(int marker, byte[] payload) {
+            this.marker = marker;
+            this.payload = payload;
+        }
+
+        boolean isExif() {
+            return marker == 0xE1 && payload.length >= EXIF_HEADER.length
+                    && Arrays.equals(Arrays.copyOf(payload, EXIF_HEADER.length), EXIF_HEADER);
+        }
+    }
+
+    /**
+     * Checks the file name and tag names, without reading the file
+     * @return Whether the file might be written by this writer, write can still decline once it has looked at the file
+     */
+    static boolean canWrite(File file, Map<Tag, String> exifData) {
+        String name = file.getName().toLowerCase();
+        if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+            return false;
+        }
+        for (Tag tag : exifData.keySet()) {
+            if (!TAGS.containsKey(tag.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tags to a JPEG
+     * @param input The JPEG to read
+     * @param output The file to write, which can be the same as the input
+     * @param exifData The tags to set
+     * @param keepBackup When writing in place, keep the original as file_original as exiftool does
+     * @return true if the file was written, false if this writer can not handle the file and nothing was changed
+     * @throws IOException if reading or writing failed
+     */
+    static boolean write(File input, File output, Map<Tag, String> exifData, boolean keepBackup) throws IOException {
+        File tempFile = new File(output.getPath() + "_exiftool_tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        try {
+            try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+                List<Segment> segments = new ArrayList<>();
+                long scanStart = readHeader(in, segments);
+                byte[] exifSegment = buildExifSegment(segments, exifData);
+
+                try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    writeFully(out, ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+                    // The EXIF segment goes after any JFIF segment at the start, and the rest keep their order
+                    boolean exifWritten = false;
+                    for (Segment segment : segments) {
+                        if (!exifWritten && segment.marker != 0xE0) {
+                            writeSegment(out, 0xE1, exifSegment);
+                            exifWritten = true;
+                        }
+                        if (!segment.isExif()) {
+                            writeSegment(out, segment.marker, segment.payload);
+                        }
+                    }
+                    if (!exifWritten) {
+                        writeSegment(out, 0xE1, exifSegment);
+                    }
+
+                    // The image data itself is copied as it is
+                    long position = scanStart;
+                    long size = in.size();
+                    while (position < size) {
+                        long transferred = in.transferTo(position, size - position, out);
+                        if (transferred <= 0) {
+                            throw new EOFException("Could not copy the image data of " + input.getPath());
+                        }
+                        position += transferred;
+                    }
+                }
+            }
+        } catch (UnsupportedException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            return false;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        if (keepBackup && input.equals(output)) {
+            File backup = new File(input.getPath() + "_original");
+            if (!backup.exists()) {
+                Files.move(input.toPath(), backup.toPath());
+            }
+        }
+        Files.move(tempFile.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Overwrites the values of tags that are already in the EXIF data of a JPEG, touching only those bytes of the file
+     * This only happens when every tag is already there with the same type, and room for the new value
+     * @param file The JPEG to change
+     * @param exifData The tags to set
+     * @return true if the file was changed, false if nothing was changed and the file needs a full write
+     * @throws IOException if reading or writing failed
+     */
+    static boolean patchInPlace(File file, Map<Tag, String> exifData) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            TiffData exif = findExif(channel);
+            if (exif == null) {
+                return false;
+            }
+            ByteBuffer tiff = exif.tiff;
+            ByteOrder order;
+            if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                return false;
+            }
+            tiff.order(order);
+
+            Map<Directory, Map<Integer, Integer>> entryPositions = new EnumMap<>(Directory.class);
+            locateEntries(tiff, tiff.getInt(4), Directory.IFD0, entryPositions, new HashSet<>());
+
+            // Work out every change before making any of them, so the file is either fully patched or left alone
+            Map<Integer, byte[]> patches = new HashMap<>();
+            for (Map.Entry<Tag, String> tag : exifData.entrySet()) {
+                TagLocation location = TAGS.get(tag.getKey().getName());
+                Integer position = location == null ? null : entryPositions.getOrDefault(location.directory, Collections.emptyMap()).get(location.tag);
+                if (position == null) {
+                    return false;
+                }
+                int type = tiff.getShort(position + 2) & 0xFFFF;
+                int count = tiff.getInt(position + 4);
+                Entry entry = toEntry(location.tag, location.directory, tag.getValue(), order);
+                if (entry.type != type || entry.count > count || (entry.count < count && type != TYPE_ASCII)) {
+                    return false;
+                }
+                // Shorter strings are padded out with nulls
+                byte[] value = Arrays.copyOf(entry.value, count * TYPE_SIZES[type]);
+                patches.put(value.length <= 4 ? position + 8 : tiff.getInt(position + 8), value);
+            }
+            for (Map.Entry<Integer, byte[]> patch : patches.entrySet()) {
+                if (patch.getKey() < 0 || patch.getKey() + patch.getValue().length > tiff.limit()) {
+                    return false;
+                }
+            }
+
+            for (Map.Entry<Integer, byte[]> patch : patches.entrySet()) {
+                ByteBuffer value = ByteBuffer.wrap(patch.getValue());
+                long position = exif.position + patch.getKey();
+                while (value.hasRemaining()) {
+                    channel.write(value, position + value.position());
+                }
+            }
+            channel.force(false);
+            return true;
+        } catch (UnsupportedException | IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The TIFF data of an EXIF segment, read into memory, and where it starts in the file
+     */
+    private static class TiffData {
+        final long position;
+        final ByteBuffer tiff;
+
+        TiffData(long position, ByteBuffer tiff) {
+            this.position = position;
+            this.tiff = tiff;
+        }
+    }
+
+    /**
+     * Walks the segment headers of a JPEG with positional reads, reading only the EXIF segment itself
+     * @return The TIFF data of the EXIF segment, or null if the JPEG has none
+     */
+    private static TiffData findExif(FileChannel jpeg) throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(4);
+        if (!readFully(jpeg, marker, 0, 2) || (marker.get(0) & 0xFF) != 0xFF || (marker.get(1) & 0xFF) != 0xD8) {
+            return null;
+        }
+        long position = 2;
+        while (position < MAX_HEADER_SIZE && readFully(jpeg, marker, position, 4)) {
+            if ((marker.get(0) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int type = marker.get(1) & 0xFF;
+            if (type == 0xFF) {
+                position++;
+                continue;
+            }
+            if (type == 0xDA || type == 0xD9) {
+                return null;
+            }
+            int length = marker.getShort(2) & 0xFFFF;
+            if (type == 0xE1 && length >= 2 + EXIF_HEADER.length) {
+                ByteBuffer payload = ByteBuffer.allocate(length - 2);
+                if (!readFully(jpeg, payload, position + 4, length - 2)) {
+                    return null;
+                }
+                byte[] header = new byte[EXIF_HEADER.length];
+                payload.duplicate().get(header);
+                if (Arrays.equals(header, EXIF_HEADER)) {
+                    payload.position(EXIF_HEADER.length);
+                    return new TiffData(position + 4 + EXIF_HEADER.length, payload.slice());
+                }
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the position of each entry in an IFD and the Exif and GPS IFDs it points to
+     */
+    private static void locateEntries(ByteBuffer tiff, int offset, Directory directory, Map<Directory, Map<Integer, Integer>> positions, Set<Integer> visited) throws UnsupportedException {
+        if (offset < 8 || !visited.add(offset)) {
+            throw new UnsupportedException("Bad IFD offset");
+        }
+        Map<Integer, Integer> directoryPositions = positions.computeIfAbsent(directory, key -> new HashMap<>());
+        int count = tiff.getShort(offset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int position = offset + 2 + 12 * i;
+            int tag = tiff.getShort(position) & 0xFFFF;
+            int type = tiff.getShort(position + 2) & 0xFFFF;
+            if (type < 1 || type >= TYPE_SIZES.length) {
+                throw new UnsupportedException("Unknown field type " + type);
+            }
+            directoryPositions.put(tag, position);
+            if (directory == Directory.IFD0 && tag == TAG_EXIF_IFD) {
+                locateEntries(tiff, tiff.getInt(position + 8), Directory.EXIF, positions, visited);
+            } else if (directory == Directory.IFD0 && tag == TAG_GPS_IFD) {
+                locateEntries(tiff, tiff.getInt(position + 8), Directory.GPS, positions, visited);
+            }
+        }
+    }
+
+    /**
+     * Reads the segments before the image data
+     * @param in The JPEG
+     * @param segments Each segment found is added here
+     * @return The position of the start of scan marker, where the image data starts
+     */
+    private static long readHeader(FileChannel in, List<Segment> segments) throws IOException, UnsupportedException {
+        ByteBuffer marker = ByteBuffer.allocate(4);
+        if (!readFully(in, marker, 0, 2) || (marker.get(0) & 0xFF) != 0xFF || (marker.get(1) & 0xFF) != 0xD8) {
+            throw new UnsupportedException("Not a JPEG");
+        }
+
+        long position = 2;
+        int headerSize = 0;
+        while (true) {
+            if (!readFully(in, marker, position, 2) || (marker.get(0) & 0xFF) != 0xFF) {
+                throw new UnsupportedException("Unexpected data in the JPEG header");
+            }
+            long markerStart = position;
+            int type = marker.get(1) & 0xFF;
+            // Skip any fill bytes before the marker
+            while (type == 0xFF) {
+                position++;
+                if (!readFully(in, marker, position, 2)) {
+                    throw new UnsupportedException("Unexpected end of the JPEG header");
+                }
+                markerStart = position;
+                type = marker.get(1) & 0xFF;
+            }
+            if (type == 0xDA) {
+                return markerStart;
+            }
+            if (type == 0xD9 || type == 0x01 || (type >= 0xD0 && type <= 0xD7)) {
+                throw new UnsupportedException("Unexpected marker in the JPEG header");
+            }
+
+            if (!readFully(in, marker, position + 2, 2)) {
+                throw new UnsupportedException("Unexpected end of the JPEG header");
+            }
+            int length = marker.getShort(0) & 0xFFFF;
+            headerSize += length;
+            if (length < 2 || headerSize > MAX_HEADER_SIZE) {
+                throw new UnsupportedException("Bad segment length in the JPEG header");
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length - 2);
+            if (!readFully(in, payload, position + 4, length - 2)) {
+                throw new UnsupportedException("Unexpected end of the JPEG header");
+            }
+            segments.add(new Segment(type, payload.array()));
+            position += 2 + length;
+        }
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void writeSegment(FileChannel out, int marker, byte[] payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.put((byte) 0xFF).put((byte) marker).putShort((short) (payload.length + 2));
+        header.flip();
+        writeFully(out, header);
+        writeFully(out, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * @return The payload of the new APP1 segment, the existing EXIF merged with the new tags
+     */
+    private static byte[] buildExifSegment(List<Segment> segments, Map<Tag, String> exifData) throws UnsupportedException {
+        Segment existing = null;
+        for (Segment segment : segments) {
+            if (segment.isExif()) {
+                if (existing != null) {
+                    throw new UnsupportedException("More than one EXIF segment");
+                }
+                existing = segment;
+            }
+        }
+
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        Ifd ifd0;
+        Ifd ifd1 = null;
+        if (existing != null) {
+            try {
+                ByteBuffer tiff = ByteBuffer.wrap(existing.payload, EXIF_HEADER.length, existing.payload.length - EXIF_HEADER.length).slice();
+                if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else if (tiff.get(0) != 'M' || tiff.get(1) != 'M') {
+                    throw new UnsupportedException("Unknown TIFF byte order");
+                }
+                tiff.order(order);
+                if (tiff.getShort(2) != 42) {
+                    throw new UnsupportedException("Bad TIFF header");
+                }
+                Set<Integer> visited = new HashSet<>();
+                ifd0 = readIfd(tiff, tiff.getInt(4), visited);
+                if (ifd0.nextOffset != 0) {
+                    ifd1 = readIfd(tiff, ifd0.nextOffset, visited);
+                    if (ifd1.nextOffset != 0) {
+                        throw new UnsupportedException("More than two IFDs");
+                    }
+                    Entry thumbnailOffset = ifd1.entries.remove(TAG_THUMBNAIL_OFFSET);
+                    Entry thumbnailLength = ifd1.entries.remove(TAG_THUMBNAIL_LENGTH);
+                    if (thumbnailOffset != null && thumbnailLength != null) {
+                        int offset = (int) readUnsigned(thumbnailOffset, order);
+                        int length = (int) readUnsigned(thumbnailLength, order);
+                        ifd1.thumbnail = new byte[length];
+                        tiff.duplicate().position(offset).get(ifd1.thumbnail);
+                    } else if (thumbnailOffset != null || thumbnailLength != null) {
+                        throw new UnsupportedException("Incomplete thumbnail");
+                    }
+                }
+                if (containsThumbnailTags(ifd0)) {
+                    throw new UnsupportedException("Thumbnail outside of IFD1");
+                }
+            } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+                throw new UnsupportedException("Bad EXIF data: " + e.getMessage());
+            }
+        } else {
+            // Start from the tags exiftool would create for a JPEG without EXIF
+            ifd0 = new Ifd();
+            ifd0.entries.put(TAG_X_RESOLUTION, rational(new long[]{72, 1}, order));
+            ifd0.entries.put(TAG_Y_RESOLUTION, rational(new long[]{72, 1}, order));
+            ifd0.entries.put(TAG_RESOLUTION_UNIT, shortValue(2, order));
+            ifd0.entries.put(TAG_YCBCR_POSITIONING, shortValue(1, order));
+        }
+
+        for (Map.Entry<Tag, String> tag : exifData.entrySet()) {
+            TagLocation location = TAGS.get(tag.getKey().getName());
+            if (location == null) {
+                throw new UnsupportedException("Unknown tag " + tag.getKey().getName());
+            }
+            Ifd ifd = ifd0;
+            if (location.directory == Directory.EXIF) {
+                ifd = getOrCreateChild(ifd0, TAG_EXIF_IFD, TAG_EXIF_VERSION, new Entry(TYPE_UNDEFINED, 4, "0232".getBytes(StandardCharsets.US_ASCII)));
+            } else if (location.directory == Directory.GPS) {
+                ifd = getOrCreateChild(ifd0, TAG_GPS_IFD, TAG_GPS_VERSION, new Entry(TYPE_BYTE, 4, new byte[]{2, 3, 0, 0}));
+            }
+            ifd.entries.put(location.tag, toEntry(location.tag, location.directory, tag.getValue(), order));
+        }
+
+        byte[] tiff = writeTiff(ifd0, ifd1, order);
+        if (EXIF_HEADER.length + tiff.length + 2 > MAX_SEGMENT_LENGTH) {
+            throw new UnsupportedException("EXIF data too large for one segment");
+        }
+        byte[] payload = new byte[EXIF_HEADER.length + tiff.length];
+        System.arraycopy(EXIF_HEADER, 0, payload, 0, EXIF_HEADER.length);
+        System.arraycopy(tiff, 0, payload, EXIF_HEADER.length, tiff.length);
+        return payload;
+    }
+
+    private static Ifd getOrCreateChild(Ifd parent, int pointerTag, int versionTag, Entry version) {
+        Ifd child = parent.children.get(pointerTag);
+        if (child == null) {
+            child = new Ifd();
+            child.entries.put(versionTag, version);
+            parent.children.put(pointerTag, child);
+        }
+        return child;
+    }
+
+    private static boolean containsThumbnailTags(Ifd ifd) {
+        if (ifd.entries.containsKey(TAG_THUMBNAIL_OFFSET) || ifd.entries.containsKey(TAG_THUMBNAIL_LENGTH)) {
+            return true;
+        }
+        for (Ifd child : ifd.children.values()) {
+            if (containsThumbnailTags(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Ifd readIfd(ByteBuffer tiff, int offset, Set<Integer> visited) throws UnsupportedException {
+        if (offset < 8 || !visited.add(offset)) {
+            throw new UnsupportedException("Bad IFD offset");
+        }
+        Ifd ifd = new Ifd();
+        int count = tiff.getShort(offset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int position = offset + 2 + 12 * i;
+            int tag = tiff.getShort(position) & 0xFFFF;
+            int type = tiff.getShort(position + 2) & 0xFFFF;
+            long valueCount = tiff.getInt(position + 4) & 0xFFFFFFFFL;
+            if (type < 1 || type >= TYPE_SIZES.length) {
+                throw new UnsupportedException("Unknown field type " + type);
+            }
+            if (UNSUPPORTED_TAGS.contains(tag)) {
+                throw new UnsupportedException("Unsupported tag " + tag);
+            }
+            long size = valueCount * TYPE_SIZES[type];
+            if (size > tiff.limit()) {
+                throw new UnsupportedException("Bad value size");
+            }
+
+            if (tag == TAG_EXIF_IFD || tag == TAG_GPS_IFD || tag == TAG_INTEROP_IFD) {
+                ifd.children.put(tag, readIfd(tiff, tiff.getInt(position + 8), visited));
+                continue;
+            }
+
+            byte[] value = new byte[(int) size];
+            int valueOffset = size <= 4 ? position + 8 : tiff.getInt(position + 8);
+            tiff.duplicate().position(valueOffset).get(value);
+            ifd.entries.put(tag, new Entry(type, (int) valueCount, value));
+        }
+        ifd.nextOffset = tiff.getInt(offset + 2 + 12 * count);
+        return ifd;
+    }
+
+    private static long readUnsigned(Entry entry, ByteOrder order) throws UnsupportedException {
+        ByteBuffer value = ByteBuffer.wrap(entry.value).order(order);
+        if (entry.type == TYPE_LONG && entry.count == 1) {
+            return value.getInt() & 0xFFFFFFFFL;
+        } else if (entry.type == TYPE_SHORT && entry.count == 1) {
+            return value.getShort() & 0xFFFF;
+        }
+        throw new UnsupportedException("Expected a single number");
+    }
+
+    private static byte[] writeTiff(Ifd ifd0, Ifd ifd1, ByteOrder order) {
+        Map<Ifd, Integer> offsets = new IdentityHashMap<>();
+        int end = layout(ifd0, 8, offsets);
+        if (ifd1 != null) {
+            end = layout(ifd1, end, offsets);
+        }
+
+        ByteBuffer tiff = ByteBuffer.allocate(end).order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.putShort((short) 42);
+        tiff.putInt(8);
+        writeIfd(tiff, ifd0, offsets, ifd1 != null ? offsets.get(ifd1) : 0);
+        if (ifd1 != null) {
+            writeIfd(tiff, ifd1, offsets, 0);
+        }
+        return tiff.array();
+    }
+
+    /**
+     * Works out where an IFD, its values, and the IFDs it points to go
+     * @return The offset after everything that was laid out
+     */
+    private static int layout(Ifd ifd, int offset, Map<Ifd, Integer> offsets) {
+        offsets.put(ifd, offset);
+        int end = offset + 2 + 12 * ifd.entryCount() + 4;
+        for (Entry entry : ifd.entries.values()) {
+            if (entry.value.length > 4) {
+                end += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        if (ifd.thumbnail != null) {
+            end += ifd.thumbnail.length + (ifd.thumbnail.length & 1);
+        }
+        for (Ifd child : ifd.children.values()) {
+            end = layout(child, end, offsets);
+        }
+        return end;
+    }
+
+    /**
+     * Writes an IFD in the order used by layout: the directory, its values, its thumbnail, then the IFDs it points to
+     */
+    private static void writeIfd(ByteBuffer tiff, Ifd ifd, Map<Ifd, Integer> offsets, int nextOffset) {
+        int offset = offsets.get(ifd);
+        TreeMap<Integer, Entry> entries = new TreeMap<>(ifd.entries);
+        for (Map.Entry<Integer, Ifd> child : ifd.children.entrySet()) {
+            entries.put(child.getKey(), longValue(offsets.get(child.getValue()), tiff.order()));
+        }
+        int dataOffset = offset + 2 + 12 * ifd.entryCount() + 4;
+        for (Entry entry : ifd.entries.values()) {
+            if (entry.value.length > 4) {
+                dataOffset += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        if (ifd.thumbnail != null) {
+            entries.put(TAG_THUMBNAIL_OFFSET, longValue(dataOffset, tiff.order()));
+            entries.put(TAG_THUMBNAIL_LENGTH, longValue(ifd.thumbnail.length, tiff.order()));
+        }
+
+        tiff.position(offset);
+        tiff.putShort((short) entries.size());
+        int valueOffset = offset + 2 + 12 * entries.size() + 4;
+        List<byte[]> values = new ArrayList<>();
+        for (Map.Entry<Integer, Entry> tagEntry : entries.entrySet()) {
+            Entry entry = tagEntry.getValue();
+            tiff.putShort(tagEntry.getKey().shortValue());
+            tiff.putShort((short) entry.type);
+            tiff.putInt(entry.count);
+            if (entry.value.length <= 4) {
+                tiff.put(entry.value);
+                tiff.put(new byte[4 - entry.value.length]);
+            } else {
+                tiff.putInt(valueOffset);
+                values.add(entry.value);
+                valueOffset += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        tiff.putInt(nextOffset);
+        for (byte[] value : values) {
+            tiff.put(value);
+            if ((value.length & 1) == 1) {
+                tiff.put((byte) 0);
+            }
+        }
+        if (ifd.thumbnail != null) {
+            tiff.put(ifd.thumbnail);
+            if ((ifd.thumbnail.length & 1) == 1) {
+                tiff.put((byte) 0);
+            }
+        }
+        for (Map.Entry<Integer, Ifd> child : ifd.children.entrySet()) {
+            writeIfd(tiff, child.getValue(), offsets, 0);
+        }
+    }
+
+    /**
+     * Converts a value as given to exiftool (with -n) to the TIFF field for a tag
+     */
+    private static Entry toEntry(int tag, Directory directory, String value, ByteOrder order) throws UnsupportedException {
+        try {
+            if (directory == Directory.GPS) {
+                switch (tag) {
+                    case 0x0001:
+                        return ascii(Double.parseDouble(value) < 0 ? "S" : "N");
+                    case 0x0003:
+                        return ascii(Double.parseDouble(value) < 0 ? "W" : "E");
+                    case 0x0002:
+                    case 0x0004:
+                        return degrees(Double.parseDouble(value), order);
+                    case 0x0005:
+                        int altitudeRef = Integer.parseInt(value.trim());
+                        if (altitudeRef != 0 && altitudeRef != 1) {
+                            throw new UnsupportedException("Bad GPSAltitudeRef " + value);
+                        }
+                        return new Entry(TYPE_BYTE, 1, new byte[]{(byte) altitudeRef});
+                    default:
+                        return rational(parseRational(value), order);
+                }
+            }
+            switch (tag) {
+                case 0x0132:
+                case 0x9003:
+                    if (!DATE.matcher(value).matches()) {
+                        throw new UnsupportedException("Bad date " + value);
+                    }
+                    return ascii(value);
+                case 0x010F:
+                case 0x0110:
+                    return ascii(value);
+                case 0x8827:
+                    int iso = Integer.parseInt(value.trim());
+                    if (iso < 0 || iso > 0xFFFF) {
+                        throw new UnsupportedException("Bad ISO " + value);
+                    }
+                    return shortValue(iso, order);
+                default:
+                    return rational(parseRational(value), order);
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new UnsupportedException("Bad value " + value);
+        }
+    }
+
+    private static Entry ascii(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] terminated = Arrays.copyOf(bytes, bytes.length + 1);
+        return new Entry(TYPE_ASCII, terminated.length, terminated);
+    }
+
+    private static Entry shortValue(int value, ByteOrder order) {
+        return new Entry(TYPE_SHORT, 1, ByteBuffer.allocate(2).order(order).putShort((short) value).array());
+    }
+
+    private static Entry longValue(int value, ByteOrder order) {
+        return new Entry(TYPE_LONG, 1, ByteBuffer.allocate(4).order(order).putInt(value).array());
+    }
+
+    private static Entry rational(long[] rational, ByteOrder order) {
+        ByteBuffer value = ByteBuffer.allocate(8 * rational.length / 2).order(order);
+        for (long part : rational) {
+            value.putInt((int) part);
+        }
+        return new Entry(TYPE_RATIONAL, rational.length / 2, value.array());
+    }
+
+    /**
+     * @return Degrees, minutes and seconds as three rationals, with the seconds to a millionth
+     */
+    private static Entry degrees(double value, ByteOrder order) throws UnsupportedException {
+        double degrees = Math.abs(value);
+        if (Double.isNaN(degrees) || degrees > 180) {
+            throw new UnsupportedException("Bad coordinate " + value);
+        }
+        long microSeconds = Math.round(degrees * 3600 * 1000000);
+        long wholeDegrees = microSeconds / 3600000000L;
+        long minutes = microSeconds % 3600000000L / 60000000L;
+        long seconds = microSeconds % 60000000L;
+        return rational(new long[]{wholeDegrees, 1, minutes, 1, seconds, 1000000}, order);
+    }
+
+    /**
+     * @return A numerator and denominator, from either a fraction such as 1/30 or a decimal
+     */
+    private static long[] parseRational(String value) throws UnsupportedException {
+        long numerator;
+        long denominator;
+        String[] parts = value.trim().split("/");
+        if (parts.length == 2) {
+            numerator = Long.parseLong(parts[0].trim());
+            denominator = Long.parseLong(parts[1].trim());
+        } else if (parts.length == 1) {
+            BigDecimal decimal = new BigDecimal(parts[0]).setScale(6, RoundingMode.HALF_UP).stripTrailingZeros();
+            if (decimal.scale() <= 0) {
+                numerator = decimal.longValueExact();
+                denominator = 1;
+            } else {
+                numerator = decimal.unscaledValue().longValueExact();
+                denominator = BigInteger.TEN.pow(decimal.scale()).longValueExact();
+            }
+        } else {
+            throw new UnsupportedException("Bad number " + value);
+        }
+        if (numerator < 0 || denominator <= 0 || numerator > 0xFFFFFFFFL || denominator > 0xFFFFFFFFL) {
+            throw new UnsupportedException("Number out of range " + value);
+        }
+        return new long[]{numerator, denominator};
+    }
+
+}
@@ -1,8 +1,5 @@
 package com.github.addshore.facebook.data.image.exif;
 
-import com.thebuzzmedia.exiftool.ExifTool;
-import com.thebuzzmedia.exiftool.ExifToolBuilder;
-import com.thebuzzmedia.exiftool.exceptions.UnsupportedFeatureException;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -10,25 +7,29 @@ import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
+import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
-import org.apache.commons.io.FilenameUtils;
 
 import javax.swing.*;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Objects;
+import java.time.ZoneId;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 
 public class Main extends Application {
 
-    private static final String POSTS_DIRECTORY = "your_facebook_activity/posts";
-    private final String version = "0.13";
+    static final String VERSION = "0.13";
     private Stage stage;
     private MainView view;
 
@@ -49,27 +50,6 @@ public class Main extends Application {
         stage.show();
     }
 
-    /**
-     * Looks for an exiftool executable in the system PATH
-     * where an exiftool executable would be any file that without an extension has the string name "exiftool"
-     *
-     * @return File
-     */
-    private File getExifToolFromPath() throws FileNotFoundException {
-        for (String dirString : System.getenv("PATH").split(File.pathSeparator)) {
-            File dir = new File(dirString);
-            if (dir.isDirectory()) {
-                for (File file : Objects.requireNonNull(dir.listFiles())) {
-                    String fileWithoutExt = FilenameUtils.removeExtension(file.getName());
-                    if (fileWithoutExt.equals("exiftool")) {
-                        return file;
-                    }
-                }
-            }
-        }
-        throw new FileNotFoundException();
-    }
-
     /**
      * For development and testing only, checks for the existence of the facebook-example directory
      * for use with pre populating the input fields to save time
@@ -85,13 +65,13 @@ public class Main extends Application {
     }
 
     private Boolean isWindows() {
-        return System.getProperty("os.name").toLowerCase().contains("windows");
+        return ExifToolSetup.isWindows();
     }
 
     private Scene getDataEntryScene() throws Exception {
         view = new MainView();
 
-        view.versionLabel.setText("Version: " + this.version);
+        view.versionLabel.setText("Version: " + VERSION);
 
         view.hyperLinkAddshore.setOnAction(t -> getHostServices().showDocument("https://addshore.com/redirects/exiftool/writtenbylink"));
         view.hyperLinkCoffee.setOnAction(t -> getHostServices().showDocument("https://addshore.com/redirects/exiftool/coffeelink"));
@@ -115,7 +95,7 @@ public class Main extends Application {
 
         // Try to pre fill the exiftool input with a value from PATH
         try {
-            final File exifToolFromPath = getExifToolFromPath();
+            final File exifToolFromPath = ExifToolSetup.findOnPath();
             view.toolInput.setText(exifToolFromPath.getAbsolutePath());
             view.toolLabel.setText(view.toolLabel.getText() + " (found in your PATH)");
         } catch (FileNotFoundException ignored) {
@@ -126,6 +106,10 @@ public class Main extends Application {
         view.processPostsCheckbox.setSelected(true);
         view.processMessagesCheckbox.setSelected(true);
         view.processFilesCheckbox.setSelected(false);
+        view.batchWritesCheckbox.setSelected(true);
+        view.resumeCheckbox.setSelected(false);
+        view.singlePassCopyCheckbox.setSelected(false);
+        view.sidecarVideosCheckbox.setSelected(false);
         
         view.runButton.setOnAction(this.getButtonClickEventHandler(false));
         view.dryRunButton.setOnAction(this.getButtonClickEventHandler(true));
@@ -161,45 +145,39 @@ public class Main extends Application {
     private EventHandler<ActionEvent> getButtonClickEventHandler(Boolean dryRun) {
         return new EventHandler<>() {
 
-            private File getPostsDirFromInput(String ignoredInput) {
-                File inputFile = new File(view.dirInput.getText());
-
-                if (inputFile.getPath().endsWith(POSTS_DIRECTORY)) {
-                    return inputFile;
-                }
-
-                return new File(inputFile.getPath() + File.separator + POSTS_DIRECTORY);
-            }
-
             @Override
             public void handle(ActionEvent t) {
-                if (view.toolInput.getText().isEmpty() || view.dirInput.getText().isEmpty()) {
-                    Alert alert = new Alert(Alert.AlertType.ERROR, "Both fields must be filled", ButtonType.OK);
+                // Dry runs never start exiftool, so only need the directory
+                if ((!dryRun && view.toolInput.getText().isEmpty()) || view.dirInput.getText().isEmpty()) {
+                    Alert alert = new Alert(Alert.AlertType.ERROR, dryRun ? "The directory must be filled" : "Both fields must be filled", ButtonType.OK);
                     alert.showAndWait();
                     return;
                 }
 
-                File exiftoolFile = new File(view.toolInput.getText());
-                if (!exiftoolFile.exists()) {
-                    Alert alert = new Alert(Alert.AlertType.ERROR, "Can't find exiftool file " + exiftoolFile.getPath(), ButtonType.OK);
-                    alert.showAndWait();
-                    return;
-                }
+                File exiftoolFile = null;
+                if (!dryRun) {
+                    exiftoolFile = new File(view.toolInput.getText());
+                    if (!exiftoolFile.exists()) {
+                        Alert alert = new Alert(Alert.AlertType.ERROR, "Can't find exiftool file " + exiftoolFile.getPath(), ButtonType.OK);
+                        alert.showAndWait();
+                        return;
+                    }
 
-                // If on Windows and we have been given the dir instead of exe file, add the exe to the path
-                if (isWindows() && exiftoolFile.isDirectory()) {
-                    exiftoolFile = new File(exiftoolFile.getPath() + File.separator + "exiftool.exe");
-                }
+                    // If on Windows and we have been given the dir instead of exe file, add the exe to the path
+                    if (isWindows() && exiftoolFile.isDirectory()) {
+                        exiftoolFile = new File(exiftoolFile.getPath() + File.separator + "exiftool.exe");
+                    }
 
-                // If on Windows we have not been given a path to a file called exiftool.exe then complain
-                // The standard download from the exiftool website gives you exiftool(-k).exe :(
-                if (isWindows() && !exiftoolFile.getPath().endsWith("exiftool.exe")) {
-                    Alert alert = new Alert(Alert.AlertType.ERROR, "Please rename your " + exiftoolFile.getPath() + " to exiftool.exe", ButtonType.OK);
-                    alert.showAndWait();
-                    return;
+                    // If on Windows we have not been given a path to a file called exiftool.exe then complain
+                    // The standard download from the exiftool website gives you exiftool(-k).exe :(
+                    if (isWindows() && !exiftoolFile.getPath().endsWith("exiftool.exe")) {
+                        Alert alert = new Alert(Alert.AlertType.ERROR, "Please rename your " + exiftoolFile.getPath() + " to exiftool.exe", ButtonType.OK);
+                        alert.showAndWait();
+                        return;
+                    }
                 }
 
-                File dirFile = getPostsDirFromInput(view.dirInput.getText());
+                File dirFile = ProcessingEngine.getPostsDirFromInput(new File(view.dirInput.getText()));
                 if (!dirFile.exists() || !dirFile.isDirectory()) {
                     Alert alert = new Alert(Alert.AlertType.ERROR, "Directory does not exist: " + dirFile.getPath(), ButtonType.OK);
                     alert.showAndWait();
@@ -211,77 +189,73 @@ public class Main extends Application {
                     ListView<String> listView = new ListView<>(lines);
                     listView.setEditable(false);
 
-                    // Keep the list view scrolled to the bottom
+                    // Keep the list view scrolled to the bottom, lines arrive in batches so this is once per batch
                     lines.addListener((ListChangeListener<String>) c -> listView.scrollTo(listView.getItems().size() - 1));
 
                     lines.add("Task is starting...");
 
-                    stage.setScene(new Scene(listView, 800, 500));
-                    stage.show();
-
-                    // Try to create a fancy pooled and stay open exiftool
-                    // TODO exif tool creation should be done as part of the task (not in the UI thread)
-                    final ExifTool finalExifTool;
-                    ExifTool exifTool;
-                    boolean stayOpen = true;
-                    try {
-                        ExifToolBuilder builder = new ExifToolBuilder();
-                        builder.withPath(exiftoolFile);
-
-                        // If we have more than one processor, use a pool strategy of that size
-                        if (Runtime.getRuntime().availableProcessors() > 1) {
-                            builder.withPoolSize(Runtime.getRuntime().availableProcessors());
-                        }
-
-                        builder.enableStayOpen();
-                        exifTool = builder.build();
-                    } catch (UnsupportedFeatureException ex) {
-                        // Fallback to just a pooled tool
-                        ExifToolBuilder builder = new ExifToolBuilder();
-                        builder.withPath(exiftoolFile);
-
-                        // If we have more than two processors, use a pool strategy
-                        if (Runtime.getRuntime().availableProcessors() > 2) {
-                            // But always leave 1 processor totally free
-                            builder.withPoolSize(Runtime.getRuntime().availableProcessors() - 1);
-                        }
+                    // Progress and rates above the scrollback, bound to the task once it has been created
+                    ProgressBar progressBar = new ProgressBar(ProgressBar.INDETERMINATE_PROGRESS);
+                    progressBar.setMaxWidth(Double.MAX_VALUE);
+                    Label progressLabel = new Label();
+                    VBox dashboard = new VBox(5, progressBar, progressLabel);
+                    dashboard.setPadding(new Insets(5));
+                    BorderPane runView = new BorderPane(listView);
+                    runView.setTop(dashboard);
 
-                        stayOpen = false;
-                        exifTool = builder.build();
-                    }
+                    stage.setScene(new Scene(runView, 800, 500));
+                    stage.show();
 
-                    finalExifTool = exifTool;
+                    // Check the exiftool version and pick the pool size, which dry runs do not need
+                    // TODO this should be done as part of the task (not in the UI thread)
+                    ExifToolSetup exifToolSetup = dryRun ? null : ExifToolSetup.build(exiftoolFile);
+                    int poolSize = exifToolSetup == null ? 1 : exifToolSetup.poolSize;
 
-                    String initialStateMessage = "Version: " + version + "\n" +
+                    String initialStateMessage = "Version: " + VERSION + "\n" +
                             "OS: " + System.getProperty("os.name") + "\n" +
-                            "Exiftool: " + finalExifTool.getVersion() + "\n" +
-                            "Exiftool Poolsize: " + Runtime.getRuntime().availableProcessors() + "\n" +
-                            "Exiftool Stayopen: " + stayOpen + "\n" +
+                            (exifToolSetup == null ? "Exiftool: not used for dry runs\n" :
+                                    "Exiftool: " + exifToolSetup.version + "\n" +
+                                    "Exiftool Poolsize: " + poolSize + "\n") +
                             "Debug: " + view.debugCheckbox.isSelected() + "\n" +
                             "Dry run: " + dryRun + "\n" +
                             "File processing mode: " + (view.copyToProcessedRadio.isSelected() ? "Copy to Processed folder" : "Overwrite originals") + "\n" +
                             "Process posts: " + view.processPostsCheckbox.isSelected() + "\n" +
                             "Process messages: " + view.processMessagesCheckbox.isSelected() + "\n" +
                             "Process files: " + view.processFilesCheckbox.isSelected() + "\n" +
+                            "Batch exiftool writes: " + view.batchWritesCheckbox.isSelected() + "\n" +
+                            "Resume: " + view.resumeCheckbox.isSelected() + "\n" +
+                            "XMP sidecars for videos: " + view.sidecarVideosCheckbox.isSelected() + "\n" +
+                            "Single pass copy: " + (view.copyToProcessedRadio.isSelected() && view.singlePassCopyCheckbox.isSelected()) + "\n" +
+                            "Time zone: " + ZoneId.systemDefault().getId() + "\n" +
                             "-------------------------------------------------";
                     System.out.println(initialStateMessage);
 
+                    MainOptions mainOptions = new MainOptions(
+                            view.debugCheckbox.isSelected(),
+                            dryRun,
+                            view.overwriteOriginalsRadio.isSelected(),
+                            view.copyToProcessedRadio.isSelected(),
+                            view.processPostsCheckbox.isSelected(),
+                            view.processMessagesCheckbox.isSelected(),
+                            view.processFilesCheckbox.isSelected()
+                    )
+                            .setExifToolPath(exiftoolFile)
+                            .setBatchSize(view.batchWritesCheckbox.isSelected() ? MainOptions.DEFAULT_BATCH_SIZE : 1)
+                            .setResume(view.resumeCheckbox.isSelected())
+                            .setSinglePassCopy(view.singlePassCopyCheckbox.isSelected())
+                            .setSidecarExtensions(view.sidecarVideosCheckbox.isSelected() ? ProcessingEngine.VIDEO_EXTENSIONS : Collections.emptyList());
+
                     ProcessingTask task = new ProcessingTask(
                             lines,
                             dirFile,
-                            finalExifTool,
+                            poolSize,
                             initialStateMessage,
-                            new MainOptions(
-                                    view.debugCheckbox.isSelected(),
-                                    dryRun,
-                                    view.overwriteOriginalsRadio.isSelected(),
-                                    view.copyToProcessedRadio.isSelected(),
-                                    view.processPostsCheckbox.isSelected(),
-                                    view.processMessagesCheckbox.isSelected(),
-                                    view.processFilesCheckbox.isSelected()
-                            )
+                            mainOptions
                     );
 
+                    progressBar.progressProperty().bind(task.progressProperty());
+                    progressLabel.textProperty().bind(task.messageProperty());
+
                     // Make sure if the window is closed while task is still running, everything exits
                     // There is probably a nicer way to do all of this, but this should do for now...
                     Platform.setImplicitExit(true);
@@ -1,7 +1,20 @@
 package com.github.addshore.facebook.data.image.exif;
 
+import java.io.File;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class MainOptions {
 
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    public static final int DEFAULT_EXIFTOOL_TIMEOUT = 120;
+
     private final Boolean debug;
     private final Boolean dry;
     private final Boolean overwriteOriginals;
@@ -10,6 +23,23 @@ public class MainOptions {
     private final Boolean processMessages;
     private final Boolean processFiles;
 
+    // Optional settings, with defaults
+    private File exifToolPath = null;
+    private int batchSize = 1;
+    private int exifToolTimeout = DEFAULT_EXIFTOOL_TIMEOUT;
+    private boolean useIndex = true;
+    private boolean resume = false;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private boolean singlePassCopy = false;
+    private boolean nativeJpegWriter = false;
+    private Set<String> sidecarExtensions = Collections.emptySet();
+    private long sidecarMinimumSize = 0;
+    private ZoneId timeZone = ZoneId.systemDefault();
+    private boolean linkDuplicates = false;
+    private OutputStrategy outputStrategy = OutputStrategy.AUTO;
+    private List<File> zipInputs = Collections.emptyList();
+    private File archiveOutput = null;
+
     public MainOptions(
             Boolean debug,
             Boolean dry,
@@ -56,4 +86,201 @@ public class MainOptions {
         return processFiles;
     }
 
+    public File getExifToolPath() {
+        return exifToolPath;
+    }
+
+    /**
+     * @param exifToolPath The exiftool executable, needed for batch writes
+     */
+    public MainOptions setExifToolPath(File exifToolPath) {
+        this.exifToolPath = exifToolPath;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize The number of files written per exiftool call, 1 writes each file on its own
+     */
+    public MainOptions setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getExifToolTimeout() {
+        return exifToolTimeout;
+    }
+
+    /**
+     * @param exifToolTimeout The seconds exiftool is given for each file before it is killed and restarted
+     */
+    public MainOptions setExifToolTimeout(int exifToolTimeout) {
+        this.exifToolTimeout = exifToolTimeout;
+        return this;
+    }
+
+    public boolean shouldUseIndex() {
+        return useIndex;
+    }
+
+    /**
+     * @param useIndex Whether to skip files that are unchanged since a previous run, and record written files for the next
+     */
+    public MainOptions setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+        return this;
+    }
+
+    public boolean shouldResume() {
+        return resume;
+    }
+
+    /**
+     * @param resume Whether to carry on from the checkpoint of a previous run that did not complete
+     */
+    public MainOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param checkpointInterval The number of files written between each sync of the checkpoint journal to disk
+     */
+    public MainOptions setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    public boolean shouldCopyInSinglePass() {
+        return singlePassCopy;
+    }
+
+    /**
+     * @param singlePassCopy Whether exiftool should write the tagged copy straight from the original (-o), rather than copying first
+     */
+    public MainOptions setSinglePassCopy(boolean singlePassCopy) {
+        this.singlePassCopy = singlePassCopy;
+        return this;
+    }
+
+    public boolean shouldUseNativeJpegWriter() {
+        return nativeJpegWriter;
+    }
+
+    /**
+     * @param nativeJpegWriter Whether to write JPEGs with the built in writer where possible, rather than always using exiftool
+     */
+    public MainOptions setNativeJpegWriter(boolean nativeJpegWriter) {
+        this.nativeJpegWriter = nativeJpegWriter;
+        return this;
+    }
+
+    public Set<String> getSidecarExtensions() {
+        return sidecarExtensions;
+    }
+
+    /**
+     * @param sidecarExtensions File extensions (without the dot) that get an XMP sidecar instead of being changed
+     */
+    public MainOptions setSidecarExtensions(Collection<String> sidecarExtensions) {
+        Set<String> extensions = new HashSet<>();
+        for (String extension : sidecarExtensions) {
+            extensions.add(extension.toLowerCase());
+        }
+        this.sidecarExtensions = Collections.unmodifiableSet(extensions);
+        return this;
+    }
+
+    /**
+     * @param fileName The name of a media file
+     * @param size The size of the file in bytes
+     * @return Whether the tags for the file go in an XMP sidecar, rather than into the file itself
+     */
+    boolean shouldUseSidecar(String fileName, long size) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && sidecarExtensions.contains(fileName.substring(dot + 1).toLowerCase())) {
+            return true;
+        }
+        return sidecarMinimumSize > 0 && size >= sidecarMinimumSize;
+    }
+
+    public long getSidecarMinimumSize() {
+        return sidecarMinimumSize;
+    }
+
+    /**
+     * @param sidecarMinimumSize Files of at least this many bytes get an XMP sidecar instead of being changed, 0 for no limit
+     */
+    public MainOptions setSidecarMinimumSize(long sidecarMinimumSize) {
+        this.sidecarMinimumSize = sidecarMinimumSize;
+        return this;
+    }
+
+    public ZoneId getTimeZone() {
+        return timeZone;
+    }
+
+    /**
+     * @param timeZone The time zone the EXIF dates are written in, as the timestamps in the export have none
+     */
+    public MainOptions setTimeZone(ZoneId timeZone) {
+        this.timeZone = timeZone;
+        return this;
+    }
+
+    public boolean shouldLinkDuplicates() {
+        return linkDuplicates;
+    }
+
+    /**
+     * @param linkDuplicates Whether media that shows up more than once with the same tags is hard linked to the first copy, rather than copied again
+     */
+    public MainOptions setLinkDuplicates(boolean linkDuplicates) {
+        this.linkDuplicates = linkDuplicates;
+        return this;
+    }
+
+    public OutputStrategy getOutputStrategy() {
+        return outputStrategy;
+    }
+
+    /**
+     * @param outputStrategy How media gets into the Processed folder before it is tagged
+     */
+    public MainOptions setOutputStrategy(OutputStrategy outputStrategy) {
+        this.outputStrategy = outputStrategy;
+        return this;
+    }
+
+    public List<File> getZipInputs() {
+        return zipInputs;
+    }
+
+    /**
+     * @param zipInputs The ZIP files to read the export from, rather than an extracted export, empty for none
+     */
+    public MainOptions setZipInputs(List<File> zipInputs) {
+        this.zipInputs = Collections.unmodifiableList(new ArrayList<>(zipInputs));
+        return this;
+    }
+
+    public File getArchiveOutput() {
+        return archiveOutput;
+    }
+
+    /**
+     * @param archiveOutput The ZIP or TAR file to write the Processed folder into, or null to write it as a folder
+     */
+    public MainOptions setArchiveOutput(File archiveOutput) {
+        this.archiveOutput = archiveOutput;
+        return this;
+    }
+
 }
@@ -27,6 +27,10 @@ public class MainView {
     public final CheckBox processPostsCheckbox;
     public final CheckBox processMessagesCheckbox;
     public final CheckBox processFilesCheckbox;
+    public final CheckBox batchWritesCheckbox;
+    public final CheckBox resumeCheckbox;
+    public final CheckBox singlePassCopyCheckbox;
+    public final CheckBox sidecarVideosCheckbox;
 
     public final Label versionLabel;
     public final Hyperlink hyperLinkAddshore;
@@ -61,6 +65,10 @@ public class MainView {
         processPostsCheckbox = (CheckBox) dataEntryView.lookup("#processPostsCheckbox");
         processMessagesCheckbox = (CheckBox) dataEntryView.lookup("#processMessagesCheckbox");
         processFilesCheckbox = (CheckBox) dataEntryView.lookup("#processFilesCheckbox");
+        batchWritesCheckbox = (CheckBox) dataEntryView.lookup("#batchWritesCheckbox");
+        resumeCheckbox = (CheckBox) dataEntryView.lookup("#resumeCheckbox");
+        singlePassCopyCheckbox = (CheckBox) dataEntryView.lookup("#singlePassCopyCheckbox");
+        sidecarVideosCheckbox = (CheckBox) dataEntryView.lookup("#sidecarVideosCheckbox");
         
         // Get the action buttons
         runButton = (Button) dataEntryView.lookup("#runButton");
@@ -0,0 +1,222 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.time.ZoneId;
+import java.util.function.Consumer;
+
+/**
+ * A single photo, video or file from the export, holding only what processing needs from its JSON.
+ *
+ * Media is kept around until its whole album or conversation is done, for the copy to the Processed folder,
+ * so this is kept to a handful of fields rather than the JSON it came from, along with the tags once they are worked out.
+ * Items are read from the work plan one album or conversation at a time, so only those of the units in progress are held.
+ */
+final class MediaItem {
+
+    /**
+     * The value of a timestamp that is not in the JSON
+     */
+    static final long NO_TIMESTAMP = -1;
+
+    /**
+     * Where the meta data for the item was found
+     */
+    enum MetadataSource {
+        /**
+         * The media_metadata.photo_metadata of the item, which is about the media file itself
+         */
+        PHOTO_METADATA,
+        /**
+         * The item itself, which is about the upload to facebook rather than the media file
+         */
+        UPLOAD,
+        /**
+         * No meta data was found
+         */
+        NONE
+    }
+
+    final String kind;
+    final String uri;
+    final File file;
+
+    final MetadataSource metadataSource;
+    final boolean hasMediaMetadataWithoutPhotoMetadata;
+    final long uploadCreationTimestamp;
+
+    // From the meta data found, as given by metadataSource
+    final long takenTimestamp;
+    final long modifiedTimestamp;
+    final long creationTimestamp;
+    final String cameraMake;
+    final String cameraModel;
+    final String latitude;
+    final String longitude;
+    final String exposure;
+    final String isoSpeed;
+    final String focalLength;
+    final String fStop;
+
+    // The tags worked out for the item, the first time they are needed
+    private MetadataMapper.Result metadata;
+    private boolean mapped = false;
+
+    /**
+     * @param metadata The meta data found, as given by metadataSource, with the same keys as photo_metadata
+     */
+    private MediaItem(String kind, String uri, File file, MetadataSource metadataSource, boolean hasMediaMetadataWithoutPhotoMetadata,
+                      long uploadCreationTimestamp, JSONObject metadata) {
+        this.kind = kind;
+        this.uri = uri;
+        this.file = file;
+        this.metadataSource = metadataSource;
+        this.hasMediaMetadataWithoutPhotoMetadata = hasMediaMetadataWithoutPhotoMetadata;
+        this.uploadCreationTimestamp = uploadCreationTimestamp;
+        this.takenTimestamp = getTimestamp(metadata, "taken_timestamp");
+        this.modifiedTimestamp = getTimestamp(metadata, "modified_timestamp");
+        this.creationTimestamp = getTimestamp(metadata, "creation_timestamp");
+        this.cameraMake = getString(metadata, "camera_make");
+        this.cameraModel = getString(metadata, "camera_model");
+        this.latitude = getString(metadata, "latitude");
+        this.longitude = getString(metadata, "longitude");
+        this.exposure = getString(metadata, "exposure");
+        this.isoSpeed = getString(metadata, "iso_speed");
+        this.focalLength = getString(metadata, "focal_length");
+        this.fStop = getString(metadata, "f_stop");
+    }
+
+    /**
+     * @return The fields of the item as JSON, leaving out anything not found, to be read back with fromJson
+     */
+    JSONObject toJson() {
+        JSONObject metadata = new JSONObject();
+        putTimestamp(metadata, "taken_timestamp", takenTimestamp);
+        putTimestamp(metadata, "modified_timestamp", modifiedTimestamp);
+        putTimestamp(metadata, "creation_timestamp", creationTimestamp);
+        metadata.putOpt("camera_make", cameraMake);
+        metadata.putOpt("camera_model", cameraModel);
+        metadata.putOpt("latitude", latitude);
+        metadata.putOpt("longitude", longitude);
+        metadata.putOpt("exposure", exposure);
+        metadata.putOpt("iso_speed", isoSpeed);
+        metadata.putOpt("focal_length", focalLength);
+        metadata.putOpt("f_stop", fStop);
+
+        JSONObject json = new JSONObject();
+        json.put("kind", kind);
+        json.put("uri", uri);
+        json.put("source", metadataSource.name());
+        if (hasMediaMetadataWithoutPhotoMetadata) {
+            json.put("no_photo_metadata", true);
+        }
+        putTimestamp(json, "upload_creation_timestamp", uploadCreationTimestamp);
+        if (!metadata.isEmpty()) {
+            json.put("metadata", metadata);
+        }
+        return json;
+    }
+
+    /**
+     * @param json The JSON from toJson
+     * @param postsDir The posts directory of the export, which the uri is resolved against
+     */
+    static MediaItem fromJson(JSONObject json, File postsDir) {
+        String uri = json.getString("uri");
+        JSONObject metadata = json.optJSONObject("metadata");
+        return new MediaItem(json.getString("kind"), uri, WorkPlan.resolveUri(postsDir, uri), MetadataSource.valueOf(json.getString("source")),
+                json.optBoolean("no_photo_metadata"), getTimestamp(json, "upload_creation_timestamp"), metadata == null ? new JSONObject() : metadata);
+    }
+
+    private static void putTimestamp(JSONObject json, String key, long timestamp) {
+        if (timestamp != NO_TIMESTAMP) {
+            json.put(key, timestamp);
+        }
+    }
+
+    /**
+     * @param kind The array the item came from ("photos", "videos" or "files")
+     * @param data The JSON of the item, which is not kept
+     * @param postsDir The posts directory of the export, which the uri is resolved against
+     * @return The item, or null if it has no uri
+     */
+    static MediaItem from(String kind, JSONObject data, File postsDir) {
+        String uri = getString(data, "uri");
+        if (uri == null) {
+            return null;
+        }
+
+        // First look for the actual meta data for the media file that was uploaded
+        JSONObject metadata = null;
+        MetadataSource metadataSource = MetadataSource.NONE;
+        boolean hasMediaMetadataWithoutPhotoMetadata = false;
+        JSONObject mediaMetadata = data.optJSONObject("media_metadata");
+        if (mediaMetadata != null) {
+            metadata = mediaMetadata.optJSONObject("photo_metadata");
+            if (metadata != null) {
+                metadataSource = MetadataSource.PHOTO_METADATA;
+            } else {
+                hasMediaMetadataWithoutPhotoMetadata = true;
+            }
+        }
+        // Otherwise use the higher level data, which isn't data about the photo itself, but rather about the photo upload to facebook
+        long uploadCreationTimestamp = getTimestamp(data, "creation_timestamp");
+        if (metadata == null && uploadCreationTimestamp != NO_TIMESTAMP) {
+            metadata = data;
+            metadataSource = MetadataSource.UPLOAD;
+        }
+
+        return new MediaItem(kind, uri, WorkPlan.resolveUri(postsDir, uri), metadataSource, hasMediaMetadataWithoutPhotoMetadata,
+                uploadCreationTimestamp, metadata == null ? new JSONObject() : metadata);
+    }
+
+    /**
+     * @return A string field, also accepting numbers as facebook is not consistent about which it uses, or null
+     */
+    private static String getString(JSONObject json, String key) {
+        Object value = json.opt(key);
+        if (value instanceof String || value instanceof Number) {
+            return value.toString();
+        }
+        return null;
+    }
+
+    /**
+     * @return A unix timestamp field, given as either a number or a string, or NO_TIMESTAMP
+     */
+    private static long getTimestamp(JSONObject json, String key) {
+        String value = getString(json, key);
+        if (value == null) {
+            return NO_TIMESTAMP;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return NO_TIMESTAMP;
+        }
+    }
+
+    /**
+     * Works out the tags for the item the first time it is called, and gives the same tags back after that,
+     * so an item that is tagged in place and then copied is only mapped once
+     * @param zone The time zone to write the EXIF dates in, which is the same for the whole run
+     * @param debug Receives debug messages about where each tag came from, the first time only
+     * @return The tags, or null if no meta data could be found for the item
+     */
+    synchronized MetadataMapper.Result getMetadata(ZoneId zone, Consumer<String> debug) {
+        if (!mapped) {
+            metadata = MetadataMapper.map(this, zone, debug);
+            mapped = true;
+        }
+        return metadata;
+    }
+
+    /**
+     * @return The file name at the end of the uri
+     */
+    String getFileName() {
+        return uri.substring(uri.lastIndexOf('/') + 1);
+    }
+
+}
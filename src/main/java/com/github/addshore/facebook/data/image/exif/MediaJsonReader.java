@@ -0,0 +1,199 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pulls media items out of a Facebook album or message JSON file one at a time, without loading the whole file.
+ *
+ * Only a single element of the media array (a photo, or a message) is held in memory at once.
+ * Other top level fields, such as the album name or conversation title, are kept as they are passed
+ * so they can be read once the items before them have been consumed.
+ */
+class MediaJsonReader implements Closeable {
+
+    private static final String[] MESSAGE_MEDIA_KEYS = {"photos", "videos", "files"};
+
+    /**
+     * A single media item, along with the array it came from ("photos", "videos" or "files")
+     */
+    static class MediaEntry {
+        final String kind;
+        final JSONObject data;
+
+        MediaEntry(String kind, JSONObject data) {
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
+    private enum State {START, FIELDS, AFTER_VALUE, ARRAY, DONE}
+
+    private final Reader reader;
+    private final JSONTokener tokener;
+    private final String arrayKey;
+    private final boolean arrayOfMessages;
+    private final Map<String, Object> fields = new HashMap<>();
+    private final Deque<MediaEntry> pending = new ArrayDeque<>();
+    private State state = State.START;
+    private boolean foundArray = false;
+    private int arrayLength = 0;
+
+    private MediaJsonReader(File jsonFile, String arrayKey, boolean arrayOfMessages) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8));
+        this.tokener = new JSONTokener(reader);
+        this.arrayKey = arrayKey;
+        this.arrayOfMessages = arrayOfMessages;
+    }
+
+    /**
+     * Reads the "photos" array of an album file
+     */
+    static MediaJsonReader forAlbum(File albumJsonFile) throws IOException {
+        return new MediaJsonReader(albumJsonFile, "photos", false);
+    }
+
+    /**
+     * Reads the photos, videos and files of each entry in the "messages" array of a message file
+     */
+    static MediaJsonReader forMessages(File messageJsonFile) throws IOException {
+        return new MediaJsonReader(messageJsonFile, "messages", true);
+    }
+
+    /**
+     * @return The next media item, or null once the end of the file has been reached
+     */
+    MediaEntry next() throws JSONException {
+        while (pending.isEmpty()) {
+            switch (state) {
+                case DONE:
+                    return null;
+                case START:
+                    expect('{');
+                    state = endsWith('}') ? State.DONE : State.FIELDS;
+                    break;
+                case FIELDS:
+                    String key = tokener.nextValue().toString();
+                    expect(':');
+                    if (key.equals(arrayKey)) {
+                        expect('[');
+                        foundArray = true;
+                        state = endsWith(']') ? State.AFTER_VALUE : State.ARRAY;
+                    } else {
+                        fields.put(key, tokener.nextValue());
+                        state = State.AFTER_VALUE;
+                    }
+                    break;
+                case AFTER_VALUE:
+                    char separator = tokener.nextClean();
+                    if (separator == '}') {
+                        state = State.DONE;
+                    } else if (separator == ',') {
+                        state = State.FIELDS;
+                    } else {
+                        throw tokener.syntaxError("Expected a ',' or '}'");
+                    }
+                    break;
+                case ARRAY:
+                    Object element = tokener.nextValue();
+                    arrayLength++;
+                    if (element instanceof JSONObject) {
+                        queueMedia((JSONObject) element);
+                    }
+                    char arraySeparator = tokener.nextClean();
+                    if (arraySeparator == ']') {
+                        state = State.AFTER_VALUE;
+                    } else if (arraySeparator != ',') {
+                        throw tokener.syntaxError("Expected a ',' or ']'");
+                    }
+                    break;
+            }
+        }
+        return pending.poll();
+    }
+
+    private void queueMedia(JSONObject element) {
+        if (!arrayOfMessages) {
+            pending.add(new MediaEntry(arrayKey, element));
+            return;
+        }
+        for (String mediaKey : MESSAGE_MEDIA_KEYS) {
+            JSONArray media = element.optJSONArray(mediaKey);
+            if (media == null) {
+                continue;
+            }
+            for (int i = 0; i < media.length(); i++) {
+                JSONObject mediaData = media.optJSONObject(i);
+                if (mediaData != null) {
+                    pending.add(new MediaEntry(mediaKey, mediaData));
+                }
+            }
+        }
+    }
+
+    private void expect(char expected) throws JSONException {
+        if (tokener.nextClean() != expected) {
+            throw tokener.syntaxError("Expected a '" + expected + "'");
+        }
+    }
+
+    private boolean endsWith(char closing) throws JSONException {
+        if (tokener.nextClean() == closing) {
+            return true;
+        }
+        tokener.back();
+        return false;
+    }
+
+    /**
+     * @return Whether the media array ("photos" or "messages") has been found so far
+     */
+    boolean hasFoundArray() {
+        return foundArray;
+    }
+
+    /**
+     * @return The number of elements read from the media array so far (photos, or messages)
+     */
+    int getArrayLength() {
+        return arrayLength;
+    }
+
+    /**
+     * @return Whether a top level field has been read so far
+     */
+    boolean has(String key) {
+        return fields.containsKey(key);
+    }
+
+    /**
+     * @return A top level string field that has been read so far, or null
+     */
+    String getString(String key) {
+        Object value = fields.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return A top level array field that has been read so far, or null
+     */
+    JSONArray getJSONArray(String key) {
+        Object value = fields.get(key);
+        return value instanceof JSONArray ? (JSONArray) value : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs media work on a fixed number of worker threads, normally one per pooled exiftool process.
+ * The queue in front of the workers is bounded, so submitting blocks once enough work is waiting,
+ * and any work that has not started by the time the task is cancelled is skipped.
+ */
+class MediaWorkerPool implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queueSlots;
+    private final BooleanSupplier isCancelled;
+
+    /**
+     * @param workers The number of worker threads
+     * @param queueCapacity The number of items allowed to wait for a free worker
+     * @param isCancelled Checked before each item is started
+     */
+    MediaWorkerPool(int workers, int queueCapacity, BooleanSupplier isCancelled) {
+        this.queueSlots = new Semaphore(workers + queueCapacity);
+        this.isCancelled = isCancelled;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                workers,
+                workers,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "media-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Queues some work, blocking while the queue is full.
+     * @param work The work to run on a worker thread
+     * @return A future for the result, which will be null if the work was skipped due to cancellation
+     */
+    <T> Future<T> submit(Callable<T> work) throws InterruptedException {
+        queueSlots.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    if (isCancelled.getAsBoolean()) {
+                        return null;
+                    }
+                    return work.call();
+                } finally {
+                    queueSlots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueSlots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a single piece of work to finish
+     * @return The result, or null if the work was skipped
+     * @throws ExecutionException if the work threw, holding what it threw
+     */
+    <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops accepting work and waits for the running work to finish, queued work is skipped if cancelled.
+     * If interrupted while waiting it returns early, with the thread's interrupt flag set again.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
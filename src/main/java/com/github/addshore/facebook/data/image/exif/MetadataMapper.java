@@ -0,0 +1,181 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+import com.thebuzzmedia.exiftool.core.StandardTag;
+
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Works out the EXIF tags to write for a media item from its data in the export.
+ * Shared by processing and dry runs, so a dry run reports exactly the tags a real run would write.
+ *
+ * Use {@link MediaItem#getMetadata(ZoneId, Consumer)} rather than calling this directly, so the tags are only worked out once
+ * for an item that is both tagged and copied.
+ */
+class MetadataMapper {
+
+    /**
+     * The tags for a media item, along with what they were worked out from
+     */
+    static class Result {
+        final Map<Tag, String> exifData;
+        final String takenTimestamp;
+        final long takenTime;
+        final boolean hasModifiedTimestamp;
+
+        /**
+         * @param exifData The tags to write
+         * @param takenTimestamp The EXIF formatted taken time, or null if there was none
+         * @param takenTime The taken time as a unix timestamp, or MediaItem.NO_TIMESTAMP if there was none
+         * @param hasModifiedTimestamp Whether the modified date came from the export, rather than being the current time
+         */
+        Result(Map<Tag, String> exifData, String takenTimestamp, long takenTime, boolean hasModifiedTimestamp) {
+            // The same result is shared by every use of the item, so it can not be changed
+            this.exifData = Collections.unmodifiableMap(exifData);
+            this.takenTimestamp = takenTimestamp;
+            this.takenTime = takenTime;
+            this.hasModifiedTimestamp = hasModifiedTimestamp;
+        }
+    }
+
+    /**
+     * @param item The media item
+     * @param zone The time zone to write the EXIF dates in
+     * @param debug Receives debug messages about where each tag came from
+     * @return The tags, or null if no meta data could be found for the media
+     */
+    static Result map(MediaItem item, ZoneId zone, Consumer<String> debug) {
+        if (item.hasMediaMetadataWithoutPhotoMetadata) {
+            debug.accept("WARNING: Got media_metadata but no photo_metadata, FAILING for image...");
+        }
+        if (item.metadataSource == MediaItem.MetadataSource.UPLOAD) {
+            // The higher level data isn't data about the photo itself, but rather about the photo upload to facebook
+            // which won't have things like iso... but will have the creation_timestamp
+            debug.accept("Falling back to root meta data for image");
+        }
+        // Otherwise we couldn't find anything at all :( so skip the file...
+        if (item.metadataSource == MediaItem.MetadataSource.NONE) {
+            debug.accept("WARNING: No media_metadata found, and no fallback used, FAILING for image...");
+            return null;
+        }
+
+        // Figure out the time the picture was taken
+        long taken = MediaItem.NO_TIMESTAMP;
+        if (item.takenTimestamp != MediaItem.NO_TIMESTAMP) {
+            taken = item.takenTimestamp;
+            debug.accept(StandardTag.DATE_TIME_ORIGINAL + " got from taken_timestamp of media file:" + taken);
+        } else if (item.modifiedTimestamp != MediaItem.NO_TIMESTAMP) {
+            // It's missing, replace with modified
+            taken = item.modifiedTimestamp;
+            debug.accept(StandardTag.DATE_TIME_ORIGINAL + " got from modified_timestamp of media file:" + taken);
+        } else if (item.creationTimestamp != MediaItem.NO_TIMESTAMP) {
+            // Fallback to the creation timestamp
+            taken = item.creationTimestamp;
+            debug.accept(StandardTag.DATE_TIME_ORIGINAL + " got from creation_timestamp of media file:" + taken);
+        } else if (item.uploadCreationTimestamp != MediaItem.NO_TIMESTAMP) {
+            // Fallback to the facebook upload creation timestamp, rather than one from the media file itself..
+            taken = item.uploadCreationTimestamp;
+            debug.accept(StandardTag.DATE_TIME_ORIGINAL + " got from creation_timestamp of facebook upload:" + taken);
+        } else {
+            debug.accept(StandardTag.DATE_TIME_ORIGINAL + " could not find a source");
+        }
+        String takenTimestamp = null;
+        if (taken != MediaItem.NO_TIMESTAMP) {
+            takenTimestamp = ExifTimestamps.format(taken, zone);
+        }
+
+        // And set a modified timestamp
+        String modifiedTimestamp;
+        if (item.modifiedTimestamp != MediaItem.NO_TIMESTAMP) {
+            modifiedTimestamp = ExifTimestamps.format(item.modifiedTimestamp, zone);
+            debug.accept(CustomTag.MODIFYDATE + " got from modified_timestamp:" + item.modifiedTimestamp);
+        } else {
+            modifiedTimestamp = ExifTimestamps.now(zone);
+            debug.accept(CustomTag.MODIFYDATE + " could not find a source, using today");
+        }
+
+        // fstop
+        String fStop = null;
+        if (item.fStop != null) {
+            String[] parts = item.fStop.split("/");
+            if (parts.length <= 1) {
+                fStop = item.fStop;
+            } else {
+                try {
+                    fStop = Double.toString(Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]));
+                } catch (NumberFormatException e) {
+                    debug.accept(CustomTag.FNUMBER + " could not parse " + item.fStop);
+                }
+            }
+            if (fStop != null) {
+                debug.accept(CustomTag.FNUMBER + " got data " + fStop);
+            }
+        } else {
+            debug.accept(CustomTag.FNUMBER + " could not find data");
+        }
+
+        debug.accept("Constructing exif data object");
+        Map<Tag, String> exifData = new HashMap<>();
+
+        exifData.put(CustomTag.MODIFYDATE, modifiedTimestamp);
+
+        if (takenTimestamp != null) {
+            exifData.put(StandardTag.DATE_TIME_ORIGINAL, takenTimestamp);
+        }
+
+        if (item.cameraMake != null) {
+            exifData.put(StandardTag.MAKE, item.cameraMake);
+            debug.accept(StandardTag.MAKE + " got data " + item.cameraMake);
+        } else {
+            debug.accept(StandardTag.MAKE + " could not find data");
+        }
+        if (item.cameraModel != null) {
+            exifData.put(StandardTag.MODEL, item.cameraModel);
+            debug.accept(StandardTag.MODEL + " got data " + item.cameraModel);
+        } else {
+            debug.accept(StandardTag.MODEL + " could not find data");
+        }
+
+        if (item.latitude != null && item.longitude != null) {
+            exifData.put(StandardTag.GPS_LATITUDE, item.latitude);
+            exifData.put(StandardTag.GPS_LATITUDE_REF, item.latitude);
+            exifData.put(StandardTag.GPS_LONGITUDE, item.longitude);
+            exifData.put(StandardTag.GPS_LONGITUDE_REF, item.longitude);
+            exifData.put(StandardTag.GPS_ALTITUDE, "0");
+            exifData.put(StandardTag.GPS_ALTITUDE_REF, "0");
+            debug.accept(StandardTag.GPS_LATITUDE + " got data " + item.latitude);
+            debug.accept(StandardTag.GPS_LONGITUDE + " got data " + item.longitude);
+        } else {
+            debug.accept("COORDINATES could not find data");
+        }
+
+        if (item.exposure != null) {
+            exifData.put(CustomTag.EXPOSURE, item.exposure);
+            debug.accept(CustomTag.EXPOSURE + " got data " + item.exposure);
+        } else {
+            debug.accept(CustomTag.EXPOSURE + " could not find data");
+        }
+        if (item.isoSpeed != null) {
+            exifData.put(StandardTag.ISO, item.isoSpeed);
+            debug.accept(StandardTag.ISO + " got data " + item.isoSpeed);
+        } else {
+            debug.accept(StandardTag.ISO + " could not find data");
+        }
+        if (item.focalLength != null) {
+            exifData.put(StandardTag.FOCAL_LENGTH, item.focalLength);
+            debug.accept(StandardTag.FOCAL_LENGTH + " got data " + item.focalLength);
+        } else {
+            debug.accept(StandardTag.FOCAL_LENGTH + " could not find data");
+        }
+        if (fStop != null) {
+            exifData.put(CustomTag.FNUMBER, fStop);
+        }
+
+        return new Result(exifData, takenTimestamp, taken, item.modifiedTimestamp != MediaItem.NO_TIMESTAMP);
+    }
+
+}
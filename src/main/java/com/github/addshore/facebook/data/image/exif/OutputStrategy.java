@@ -0,0 +1,35 @@
+package com.github.addshore.facebook.data.image.exif;
+
+/**
+ * How media gets into the Processed folder, before it is tagged there
+ */
+public enum OutputStrategy {
+    /**
+     * Clone large files whose content is not changed (those that get an XMP sidecar) where the filesystem can (btrfs, xfs, APFS),
+     * and copy everything else
+     */
+    AUTO,
+    /**
+     * Always make a full copy
+     */
+    COPY,
+    /**
+     * Clone every file where the filesystem can, and copy where it can not
+     */
+    CLONE,
+    /**
+     * Hard link files whose content is not changed (those that get an XMP sidecar), and otherwise do as AUTO.
+     * A linked file is the original, so only files whose times are already the taken time are linked, and their times are left alone.
+     */
+    HARDLINK;
+
+    /**
+     * @param name The name of a strategy, in any case, as given on the command line
+     * @return The strategy
+     * @throws IllegalArgumentException if there is no strategy with that name
+     */
+    public static OutputStrategy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+    }
+
+}
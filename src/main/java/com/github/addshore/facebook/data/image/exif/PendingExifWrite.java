@@ -0,0 +1,70 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Format;
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * EXIF data that has been worked out for a file but not yet written to it
+ */
+class PendingExifWrite {
+
+    final File file;
+    final Format format;
+    final Map<Tag, String> exifData;
+    final long takenTime;
+    final File sourceFile;
+    final String tagsHash;
+    final boolean copyFromSource;
+
+    /**
+     * @param file The file to write to
+     * @param format The exiftool format (extra arguments) to use
+     * @param exifData The tags to write
+     * @param takenTime The taken time to also set as the file times, as a unix timestamp, or MediaItem.NO_TIMESTAMP
+     * @param sourceFile The file the media came from, which is the same as file when not copying
+     * @param tagsHash The hash of the tags, used to record the write in the ProcessedIndex
+     * @param copyFromSource If true exiftool reads the source file and writes the tagged copy to file in one pass
+     */
+    PendingExifWrite(File file, Format format, Map<Tag, String> exifData, long takenTime, File sourceFile, String tagsHash, boolean copyFromSource) {
+        this.file = file;
+        this.format = format;
+        this.exifData = exifData;
+        this.takenTime = takenTime;
+        this.sourceFile = sourceFile;
+        this.tagsHash = tagsHash;
+        this.copyFromSource = copyFromSource;
+    }
+
+    /**
+     * @return The file that exiftool should be given to read
+     */
+    File getExifToolInput() {
+        return copyFromSource ? sourceFile : file;
+    }
+
+    /**
+     * @return Whether exiftool would keep the original as file_original, when writing in place without -overwrite_original
+     */
+    boolean keepsBackup() {
+        return !copyFromSource && !format.getArgs().contains("-overwrite_original");
+    }
+
+    /**
+     * @return The exiftool format to use, which has exiftool write to file when copying from the source
+     */
+    Format getExifToolFormat() {
+        if (!copyFromSource) {
+            return format;
+        }
+        List<String> args = new ArrayList<>(format.getArgs());
+        args.add("-o");
+        args.add(file.getAbsolutePath());
+        return () -> args;
+    }
+
+}
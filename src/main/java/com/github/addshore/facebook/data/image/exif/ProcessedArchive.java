@@ -0,0 +1,220 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A ZIP or TAR file that the Processed folder is written into, rather than to many separate files.
+ *
+ * Files are appended one after another through a large buffer, so the archive is written sequentially,
+ * with the modified and creation times of each file kept in the archive.
+ */
+abstract class ProcessedArchive implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Set<String> names = new HashSet<>();
+    private int fileCount = 0;
+    private long byteCount = 0;
+
+    /**
+     * @param archiveFile The archive to write, which is a TAR file if the name ends in .tar and a ZIP file otherwise
+     * @throws IOException if the archive can not be created
+     */
+    static ProcessedArchive create(File archiveFile) throws IOException {
+        if (archiveFile.getParentFile() != null) {
+            Files.createDirectories(archiveFile.getAbsoluteFile().getParentFile().toPath());
+        }
+        OutputStream output = new BufferedOutputStream(Files.newOutputStream(archiveFile.toPath()), BUFFER_SIZE);
+        if (archiveFile.getName().toLowerCase().endsWith(".tar")) {
+            return new Tar(output);
+        }
+        return new Zip(output);
+    }
+
+    /**
+     * Appends a file to the archive
+     * @param name The path of the file within the archive, using / between folders
+     * @param file The file to add
+     * @return false if a file with that name is already in the archive, in which case nothing is added
+     * @throws IOException if the file can not be read, or the archive written
+     */
+    synchronized boolean add(String name, File file) throws IOException {
+        if (!names.add(name)) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        write(name, file, attributes);
+        fileCount++;
+        byteCount += attributes.size();
+        return true;
+    }
+
+    synchronized int getFileCount() {
+        return fileCount;
+    }
+
+    synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    protected abstract void write(String name, File file, BasicFileAttributes attributes) throws IOException;
+
+    /**
+     * A ZIP file, with each file deflated at level 0, as media is already compressed.
+     * Unlike stored entries, deflated ones can have their CRC and sizes written after the data, so each file is only read once.
+     */
+    private static class Zip extends ProcessedArchive {
+        private final ZipOutputStream output;
+
+        Zip(OutputStream output) {
+            this.output = new ZipOutputStream(output, StandardCharsets.UTF_8);
+            this.output.setMethod(ZipOutputStream.DEFLATED);
+            this.output.setLevel(Deflater.NO_COMPRESSION);
+        }
+
+        @Override
+        protected void write(String name, File file, BasicFileAttributes attributes) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(attributes.lastModifiedTime());
+            entry.setCreationTime(attributes.creationTime());
+            output.putNextEntry(entry);
+            Files.copy(file.toPath(), output);
+            output.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    /**
+     * A POSIX (pax) TAR file, so that long and non ASCII names, large files and creation times all fit
+     */
+    static class Tar extends ProcessedArchive {
+        private static final int BLOCK_SIZE = 512;
+        private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+        private final OutputStream output;
+
+        Tar(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        protected void write(String name, File file, BasicFileAttributes attributes) throws IOException {
+            writeHeaders(name, attributes.size(), attributes.lastModifiedTime(), attributes.creationTime());
+            Files.copy(file.toPath(), output);
+            pad(attributes.size());
+        }
+
+        /**
+         * Writes the pax extended header and the ustar header that go before the data of a file
+         */
+        void writeHeaders(String name, long size, FileTime modified, FileTime created) throws IOException {
+            Map<String, String> pax = new LinkedHashMap<>();
+            pax.put("path", name);
+            pax.put("mtime", toPaxTime(modified));
+            pax.put("LIBARCHIVE.creationtime", toPaxTime(created));
+            if (size > MAX_OCTAL_SIZE) {
+                pax.put("size", Long.toString(size));
+            }
+            byte[] paxRecords = toPaxRecords(pax);
+            output.write(header("PaxHeaders/" + name, paxRecords.length, modified, 'x'));
+            output.write(paxRecords);
+            pad(paxRecords.length);
+
+            output.write(header(name, size, modified, '0'));
+        }
+
+        private static String toPaxTime(FileTime time) {
+            long millis = time.toMillis();
+            return Math.floorDiv(millis, 1000) + "." + String.format("%03d", Math.floorMod(millis, 1000));
+        }
+
+        /**
+         * @return The records of a pax extended header, each of which starts with its own length
+         */
+        private static byte[] toPaxRecords(Map<String, String> pax) {
+            StringBuilder records = new StringBuilder();
+            for (Map.Entry<String, String> entry : pax.entrySet()) {
+                int length = (" " + entry.getKey() + "=" + entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8).length;
+                int total = length + Integer.toString(length).length();
+                // Adding the length can make the length one digit longer
+                if (Integer.toString(total).length() != Integer.toString(length).length()) {
+                    total++;
+                }
+                records.append(total).append(' ').append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            return records.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return A ustar header block, whose name (and any size too large for it) is replaced by the pax header before it
+         */
+        private static byte[] header(String name, long size, FileTime modified, char type) {
+            byte[] header = new byte[BLOCK_SIZE];
+            byte[] nameBytes = name.replaceAll("[^\\x20-\\x7e]", "_").getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(nameBytes, Math.max(0, nameBytes.length - 100), header, 0, Math.min(100, nameBytes.length));
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, Math.min(size, MAX_OCTAL_SIZE));
+            octal(header, 136, 12, Math.max(0, modified.toMillis() / 1000));
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            octal(header, 148, 7, checksum);
+            return header;
+        }
+
+        /**
+         * Writes a number as zero padded octal, ending in a NUL
+         */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            StringBuilder padded = new StringBuilder();
+            for (int i = digits.length(); i < length - 1; i++) {
+                padded.append('0');
+            }
+            padded.append(digits);
+            System.arraycopy(padded.toString().getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+            header[offset + length - 1] = 0;
+        }
+
+        private void pad(long written) throws IOException {
+            int remainder = (int) (written % BLOCK_SIZE);
+            if (remainder != 0) {
+                output.write(new byte[BLOCK_SIZE - remainder]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The end of a TAR file is two empty blocks
+            output.write(new byte[BLOCK_SIZE * 2]);
+            output.close();
+        }
+    }
+
+}
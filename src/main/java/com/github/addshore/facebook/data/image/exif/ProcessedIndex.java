@@ -0,0 +1,207 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A record of every file that has been written by a previous run, so that a re-run can skip media that
+ * has not changed without calling exiftool.
+ *
+ * Each line of the index file holds the written file (relative to the export), the size and modified time
+ * of the source and of the written file, and a hash of the tags that were written.
+ * The file is only ever appended to, with later lines replacing earlier ones when it is loaded.
+ */
+class ProcessedIndex implements Closeable {
+
+    static final String FILE_NAME = "processed-index.tsv";
+
+    private static class Entry {
+        final long sourceSize;
+        final long sourceModified;
+        final long targetSize;
+        final long targetModified;
+        final String tagsHash;
+
+        Entry(long sourceSize, long sourceModified, long targetSize, long targetModified, String tagsHash) {
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.targetSize = targetSize;
+            this.targetModified = targetModified;
+            this.tagsHash = tagsHash;
+        }
+    }
+
+    private final File exportRoot;
+    private final SourceFiles sourceFiles;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Writer writer;
+
+    private ProcessedIndex(File exportRoot, SourceFiles sourceFiles, Writer writer) {
+        this.exportRoot = exportRoot;
+        this.sourceFiles = sourceFiles;
+        this.writer = writer;
+    }
+
+    /**
+     * Loads the index from the state directory, creating it if needed
+     * @param exportRoot The root of the facebook export, which keys are relative to
+     * @param stateDir The directory holding the index file
+     * @param readOnly If true the index is only consulted and never written, such as for dry runs
+     * @param sourceFiles Where the media files are read from, for the size and modified time of each source
+     */
+    static ProcessedIndex open(File exportRoot, File stateDir, boolean readOnly, SourceFiles sourceFiles) throws IOException {
+        File indexFile = new File(stateDir, FILE_NAME);
+        Writer writer = null;
+        if (!readOnly) {
+            Files.createDirectories(stateDir.toPath());
+            writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        ProcessedIndex index = new ProcessedIndex(exportRoot, sourceFiles, writer);
+        if (indexFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    // Ignore anything malformed, such as a line cut short by a crash
+                    if (parts.length != 6) {
+                        continue;
+                    }
+                    try {
+                        index.entries.put(parts[0], new Entry(
+                                Long.parseLong(parts[1]),
+                                Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3]),
+                                Long.parseLong(parts[4]),
+                                parts[5]
+                        ));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return How many files are in the index
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks if a file was already written with the same tags, and neither it nor its source has changed since
+     * @param source The file the media came from
+     * @param target The file the tags are written to, which is the same as the source when not copying
+     * @param tagsHash The hash of the tags that would be written, from hashTags
+     */
+    boolean isUpToDate(File source, File target, String tagsHash) {
+        Entry entry = entries.get(keyFor(exportRoot, target));
+        if (entry == null || !entry.tagsHash.equals(tagsHash)) {
+            return false;
+        }
+        try {
+            BasicFileAttributes targetAttributes = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+            if (targetAttributes.size() != entry.targetSize || targetAttributes.lastModifiedTime().toMillis() != entry.targetModified) {
+                return false;
+            }
+            if (source.equals(target)) {
+                return true;
+            }
+            return sourceFiles.size(source) == entry.sourceSize && sourceFiles.lastModified(source) == entry.sourceModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that a file has been written, once it has its final contents and times
+     * @param source The file the media came from
+     * @param target The file the tags were written to
+     * @param tagsHash The hash of the tags that were written, from hashTags
+     */
+    void record(File source, File target, String tagsHash) throws IOException {
+        if (writer == null) {
+            return;
+        }
+        BasicFileAttributes targetAttributes = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+        boolean inPlace = source.equals(target);
+        Entry entry = new Entry(
+                inPlace ? targetAttributes.size() : sourceFiles.size(source),
+                inPlace ? targetAttributes.lastModifiedTime().toMillis() : sourceFiles.lastModified(source),
+                targetAttributes.size(),
+                targetAttributes.lastModifiedTime().toMillis(),
+                tagsHash
+        );
+        String key = keyFor(exportRoot, target);
+        entries.put(key, entry);
+        synchronized (writer) {
+            writer.write(key + "\t" + entry.sourceSize + "\t" + entry.sourceModified + "\t"
+                    + entry.targetSize + "\t" + entry.targetModified + "\t" + entry.tagsHash + "\n");
+        }
+    }
+
+    /**
+     * Writes out anything recorded so far
+     */
+    void flush() throws IOException {
+        if (writer != null) {
+            synchronized (writer) {
+                writer.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            synchronized (writer) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * @return The path of a file relative to the export, with / separators, safe to use in a line of a state file
+     */
+    static String keyFor(File exportRoot, File target) {
+        String key = exportRoot.toPath().toAbsolutePath().relativize(target.toPath().toAbsolutePath()).toString();
+        return key.replace(File.separatorChar, '/').replace('\t', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Hashes a set of tags, independent of the order they were added in
+     */
+    static String hashTags(Map<Tag, String> exifData) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<Tag, String> tag : exifData.entrySet()) {
+            sorted.put(tag.getKey().getName(), tag.getValue());
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Map.Entry<String, String> tag : sorted.entrySet()) {
+                digest.update((tag.getKey() + "=" + tag.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,1782 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Format;
+import com.thebuzzmedia.exiftool.Tag;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Does the actual processing of a facebook export, independent of any UI.
+ * Output is passed to a ProcessingListener, and the run stops early once the cancellation check returns true.
+ */
+public class ProcessingEngine implements Engine {
+
+    private static final String POSTS_DIRECTORY = "your_facebook_activity/posts";
+    private static final String STATE_DIRECTORY = ".facebook-data-image-exif";
+    private static final String LOG_FILE = "last-run.log";
+    static final String QUARANTINE_FILE = "quarantine.tsv";
+    private static final long CLONE_MINIMUM_SIZE = 1024 * 1024;
+    static final List<String> VIDEO_EXTENSIONS = Arrays.asList("mp4", "avi", "mov", "wmv", "flv", "webm", "mkv", "m4v", "3gp");
+
+    private final ProcessingListener listener;
+    private final BooleanSupplier cancelled;
+    private final File dir;
+    private final String initialStateMessage;
+    private AsyncMessageLog messageLog;
+    private final MainOptions mainOptions;
+    private final int workerThreads;
+    private MediaWorkerPool workerPool;
+    private final SupervisedExifTool supervisedExifTool;
+    private DuplicateIndex duplicateIndex;
+    private SourceFiles sourceFiles = SourceFiles.DISK;
+    private ZipExport zipExport;
+    private ProcessedArchive archive;
+    private File stagingDir;
+    private final FileSystemCapabilities fileSystems = new FileSystemCapabilities(this::appendDebugMessage);
+    private ProcessedIndex processedIndex;
+    private CheckpointJournal checkpointJournal;
+    private WorkPlan workPlan;
+    private boolean runCompleted = false;
+
+    // Statistics tracking, updated from the worker threads
+    private final AtomicInteger statProcessedImages = new AtomicInteger();
+    private final AtomicInteger statFailedImages = new AtomicInteger();
+    private final AtomicInteger statCopiedAlbums = new AtomicInteger();
+    private final AtomicInteger statFailedMessageMedia = new AtomicInteger();
+    private final AtomicInteger statSkippedUnchanged = new AtomicInteger();
+    private final AtomicInteger statSkippedResumed = new AtomicInteger();
+    private final AtomicInteger statSkippedDuplicates = new AtomicInteger();
+    private final AtomicInteger statLinkedDuplicates = new AtomicInteger();
+    private final AtomicLong statLinkedBytes = new AtomicLong();
+    private final AtomicInteger statCloned = new AtomicInteger();
+    private final AtomicInteger statHardLinked = new AtomicInteger();
+    private final ProgressTracker progress = new ProgressTracker();
+    private final ProgressTracker.Stage taggingStage = progress.addStage("Tagging");
+    private final ProgressTracker.Stage copyingStage = progress.addStage("Copying");
+
+    /**
+     * @param listener Receives all output
+     * @param cancelled Checked between files, returning true stops the run
+     * @param dir The posts directory of the export
+     * @param workerThreads The number of files to process at once, which is also the most exiftool processes kept open
+     * @param initialStateMessage Details of the run, logged before it starts
+     * @param mainOptions The options for the run, which must include the path to exiftool
+     * @throws IllegalArgumentException if the options are for a dry run, which DryRunEngine does, or have no exiftool path
+     */
+    ProcessingEngine(ProcessingListener listener, BooleanSupplier cancelled, File dir, int workerThreads, String initialStateMessage, MainOptions mainOptions) {
+        if (mainOptions.isDryMode()) {
+            throw new IllegalArgumentException("Dry runs are done by DryRunEngine");
+        }
+        if (mainOptions.getExifToolPath() == null) {
+            throw new IllegalArgumentException("Processing needs the path to exiftool");
+        }
+        this.listener = listener;
+        this.cancelled = cancelled;
+        this.dir = dir;
+        this.workerThreads = Math.max(1, workerThreads);
+        this.initialStateMessage = initialStateMessage;
+        this.mainOptions = mainOptions;
+        // Each worker takes an exiftool from here as it needs one, so there are never more open than workers
+        this.supervisedExifTool = new SupervisedExifTool(mainOptions.getExifToolPath(), mainOptions.getExifToolTimeout() * 1000L, cancelled, this::appendMessage);
+    }
+
+    /**
+     * Finds the posts directory within an export, given either the export root or the posts directory itself
+     * @param input The path given by the user
+     * @return The posts directory (which may not exist)
+     */
+    static File getPostsDirFromInput(File input) {
+        if (input.getPath().replace(File.separatorChar, '/').endsWith(POSTS_DIRECTORY)) {
+            return input;
+        }
+
+        return new File(input.getPath() + File.separator + POSTS_DIRECTORY);
+    }
+
+    private void appendMessage(String string) {
+        if (messageLog != null) {
+            messageLog.message(string);
+        } else {
+            listener.onMessage(string);
+        }
+    }
+
+    private void appendDebugMessage(String string) {
+        // Debug output is neither shown nor written to the log file unless debug mode is on, so it is dropped straight away
+        if (this.mainOptions.isDebugMode()) {
+            this.appendMessage("debug: " + string);
+        }
+    }
+
+    /**
+     * Starts passing messages through an AsyncMessageLog, which also keeps them in the log file
+     */
+    private void openMessageLog() {
+        File logFile = new File(getStateDir(), LOG_FILE);
+        try {
+            messageLog = new AsyncMessageLog(listener, logFile, this.mainOptions.shouldResume(), initialStateMessage, AsyncMessageLog.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            appendMessage("WARNING: Could not open the log file " + logFile + ": " + e.getMessage());
+            try {
+                messageLog = new AsyncMessageLog(listener, null, false, null, AsyncMessageLog.DEFAULT_CAPACITY);
+            } catch (IOException ignored) {
+                // Nothing to open without a log file, messages just go straight to the listener
+            }
+        }
+    }
+
+    /**
+     * Waits for all messages to be passed on, then goes back to passing them straight to the listener
+     */
+    private void closeMessageLog() {
+        AsyncMessageLog log = messageLog;
+        messageLog = null;
+        try {
+            log.close();
+        } catch (IOException e) {
+            appendMessage("WARNING: Could not save the log file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The root of the export, which the posts directory is within
+     */
+    private File getExportRoot() {
+        return dir.getParentFile().getParentFile();
+    }
+
+    /**
+     * @return The directory that state kept between runs is stored in, within the export
+     */
+    File getStateDir() {
+        return new File(getExportRoot(), STATE_DIRECTORY);
+    }
+
+    private boolean isCancelled() {
+        return cancelled.getAsBoolean();
+    }
+
+    /**
+     * @return The progress of the run, which can be read from any thread while it is running
+     */
+    @Override
+    public ProgressTracker getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return The number of media files that failed to process, across posts and messages
+     */
+    @Override
+    public int getFailedCount() {
+        return statFailedImages.get() + statFailedMessageMedia.get();
+    }
+
+    /**
+     * Runs the whole task, returning once everything has finished (or been cancelled) and exiftool has been closed
+     */
+    @Override
+    public void run() {
+        openMessageLog();
+
+        // One worker per exiftool process, with a few items queued per worker so none of them sit idle
+        workerPool = new MediaWorkerPool(workerThreads, workerThreads * 4, this::isCancelled);
+
+        boolean sourcesOpen = openZipExport() && openArchive();
+        // Files in an archive can not be linked, skipped as unchanged, or resumed, as the archive is written from scratch
+        if (this.mainOptions.shouldLinkDuplicates() && archive == null) {
+            duplicateIndex = new DuplicateIndex(sourceFiles);
+        }
+
+        if (this.mainOptions.shouldUseIndex() && archive == null) {
+            try {
+                processedIndex = ProcessedIndex.open(getExportRoot(), getStateDir(), false, sourceFiles);
+                appendMessage("Files recorded by previous runs: " + processedIndex.size());
+            } catch (IOException e) {
+                appendMessage("WARNING: Could not open the index of processed files, everything will be reprocessed: " + e.getMessage());
+            }
+        }
+
+        if (archive == null) {
+            try {
+                checkpointJournal = CheckpointJournal.open(getExportRoot(), getStateDir(), this.mainOptions.shouldResume(), this.mainOptions.getCheckpointInterval());
+                if (this.mainOptions.shouldResume()) {
+                    if (checkpointJournal.size() == 0) {
+                        appendMessage("No checkpoint found to resume from, starting from the beginning");
+                    } else {
+                        appendMessage("Resuming from checkpoint, " + checkpointJournal.size() + " albums, conversations and files already done");
+                    }
+                }
+            } catch (IOException e) {
+                appendMessage("WARNING: Could not open the checkpoint journal, this run can not be resumed: " + e.getMessage());
+            }
+        }
+
+        if (sourcesOpen) {
+            try {
+                planWork();
+                processTask();
+            } catch (JSONException | IOException exception) {
+                appendMessage("Something went wrong while running the task.");
+                appendMessage("ERROR: " + exception.getMessage());
+                appendMessage("Task may not have completely finished.");
+            } catch (InterruptedException exception) {
+                appendMessage("Task cancelled, run not complete");
+            }
+        }
+
+        // Let the running workers finish their current file, anything still queued is skipped once cancelled
+        // Clear any interrupt from the cancel so that we can wait for the workers to drain
+        Thread.interrupted();
+        workerPool.close();
+        if (Thread.interrupted()) {
+            appendDebugMessage("Interrupted while waiting for workers to finish");
+        }
+
+        reportQuarantined();
+        supervisedExifTool.close();
+
+        if (processedIndex != null) {
+            try {
+                processedIndex.close();
+            } catch (IOException e) {
+                appendMessage("WARNING: Could not save the index of processed files: " + e.getMessage());
+            }
+        }
+
+        if (checkpointJournal != null) {
+            try {
+                if (runCompleted) {
+                    checkpointJournal.finish();
+                } else {
+                    checkpointJournal.close();
+                    appendMessage("Progress has been checkpointed, run again with resume to carry on");
+                }
+            } catch (IOException e) {
+                appendMessage("WARNING: Could not save the checkpoint journal: " + e.getMessage());
+            }
+        }
+
+        if (archive != null) {
+            closeArchive();
+        }
+
+        if (zipExport != null) {
+            try {
+                zipExport.close();
+            } catch (IOException e) {
+                appendDebugMessage("There was a problem closing the ZIP files: " + e.getMessage());
+            }
+        }
+
+        if (messageLog != null) {
+            closeMessageLog();
+        }
+    }
+
+    /**
+     * Opens the ZIP files the export is read from, if there are any, and extracts the album and message JSON from them
+     * @return false if the ZIP files could not be read, so there is nothing to process
+     */
+    private boolean openZipExport() {
+        List<File> zipFiles = this.mainOptions.getZipInputs();
+        if (zipFiles.isEmpty()) {
+            return true;
+        }
+        appendMessage("Reading " + zipFiles.size() + " ZIP files...");
+        try {
+            zipExport = ZipExport.open(zipFiles, getExportRoot());
+            int extracted = zipExport.extractJson();
+            appendMessage("Found " + zipExport.size() + " files in the ZIP files, extracted " + extracted + " new or changed JSON files");
+        } catch (IOException e) {
+            appendMessage("ERROR: Could not read the ZIP files: " + e.getMessage());
+            return false;
+        }
+        sourceFiles = zipExport;
+        return true;
+    }
+
+    /**
+     * Creates the archive the Processed folder is written into, if there is one, and the local folder files are tagged in before they are added to it
+     * @return false if the archive could not be created, so there is nothing to process
+     */
+    private boolean openArchive() {
+        File archiveFile = this.mainOptions.getArchiveOutput();
+        if (archiveFile == null) {
+            return true;
+        }
+        try {
+            stagingDir = Files.createTempDirectory("facebook-data-image-exif-").toFile();
+            archive = ProcessedArchive.create(archiveFile);
+        } catch (IOException e) {
+            appendMessage("ERROR: Could not create the archive " + archiveFile.getPath() + ": " + e.getMessage());
+            return false;
+        }
+        appendMessage("Writing the Processed folder to " + archiveFile.getPath());
+        appendDebugMessage("Tagging files in " + stagingDir.getPath() + " before adding them to the archive");
+        return true;
+    }
+
+    private void closeArchive() {
+        try {
+            archive.close();
+            appendMessage("Wrote " + archive.getFileCount() + " files (" + ProgressTracker.formatBytes(archive.getByteCount()) + ") to "
+                    + this.mainOptions.getArchiveOutput().getPath());
+        } catch (IOException e) {
+            appendMessage("ERROR: Could not finish the archive " + this.mainOptions.getArchiveOutput().getPath() + ": " + e.getMessage());
+        }
+        try {
+            org.apache.commons.io.FileUtils.deleteDirectory(stagingDir);
+        } catch (IOException e) {
+            appendDebugMessage("Could not remove " + stagingDir.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The Processed folder, or the local folder standing in for it while writing to an archive
+     */
+    private File getProcessedDir() {
+        if (stagingDir != null) {
+            return stagingDir;
+        }
+        return new File(getExportRoot(), "Processed");
+    }
+
+    /**
+     * Moves a finished file (and its sidecar) into the archive, when writing to one
+     * @param write The file that has been copied, and tagged unless that failed
+     */
+    private void addToArchive(PendingExifWrite write) {
+        if (archive == null || !write.file.exists()) {
+            return;
+        }
+        String name = stagingDir.toPath().relativize(write.file.toPath()).toString().replace(File.separatorChar, '/');
+        File sidecar = XmpSidecarWriter.sidecarFor(write.file);
+        try {
+            if (!archive.add(name, write.file)) {
+                appendMessage("WARNING: " + name + " is already in the archive, only the first is kept");
+            } else if (sidecar.exists()) {
+                archive.add(name.substring(0, name.length() - write.file.getName().length()) + sidecar.getName(), sidecar);
+            }
+        } catch (IOException e) {
+            appendMessage("ERROR: Could not add " + name + " to the archive: " + e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(write.file.toPath());
+            Files.deleteIfExists(sidecar.toPath());
+        } catch (IOException e) {
+            appendDebugMessage("Could not remove " + write.file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scans the whole export before processing, so the total amount of work is known up front
+     */
+    private void planWork() throws IOException {
+        appendMessage("Planning...");
+        long started = System.nanoTime();
+        workPlan = WorkPlan.scan(dir, this.mainOptions, sourceFiles, new File(getStateDir(), WorkPlan.MANIFEST_FILE_NAME));
+        appendMessage("Found " + workPlan.getMediaCount() + " media files (" + ProgressTracker.formatBytes(workPlan.getBytes()) + ") in "
+                + workPlan.getAlbums().size() + " albums and " + (workPlan.getUnitCount() - workPlan.getAlbums().size()) + " conversations"
+                + " in " + ((System.nanoTime() - started) / 1000000) + "ms");
+        if (workPlan.getMissingCount() != 0) {
+            appendMessage("WARNING: " + workPlan.getMissingCount() + " media files are missing from the export");
+        }
+
+        // Anything already done before resuming is skipped as a whole, so is not part of the progress
+        int toTag = 0;
+        int toCopy = 0;
+        for (WorkPlan.Unit unit : workPlan.getUnits()) {
+            if (checkpointJournal != null && (unit.isAlbum ? checkpointJournal.isAlbumDone(unit.source) : checkpointJournal.isConversationDone(unit.source))) {
+                continue;
+            }
+            toTag += unit.mediaCount;
+            toCopy += unit.getExistingCount();
+        }
+        taggingStage.expect(toTag);
+        if (this.mainOptions.shouldCopyToNewFolders()) {
+            copyingStage.expect(toCopy);
+        }
+    }
+
+    private void processTask() throws IOException, JSONException, InterruptedException {
+        // Process posts if enabled
+        if (this.mainOptions.shouldProcessPosts()) {
+            processPosts();
+        } else {
+            appendMessage("Skipping posts processing (disabled)");
+        }
+
+        // Process messages if enabled
+        if (this.mainOptions.shouldProcessMessages()) {
+            appendMessage("Looking for messages...");
+            if (this.mainOptions.shouldProcessFiles()) {
+                appendMessage("File processing: enabled (will process photos, videos, and files)");
+            } else {
+                appendMessage("File processing: disabled (will only process photos and videos)");
+            }
+            processMessages();
+        } else {
+            appendMessage("Skipping messages processing (disabled)");
+        }
+
+        if (this.isCancelled()) {
+            appendMessage("Task cancelled, run not complete");
+        } else {
+            runCompleted = true;
+            appendMessage("-------------------------------------------------");
+            appendMessage("Task complete");
+            if (statProcessedImages.get() != 0) {
+                appendMessage("Images processed: " + statProcessedImages.get());
+            }
+            if (statFailedImages.get() != 0) {
+                appendMessage("Images failed: " + statFailedImages.get());
+            }
+            if (statSkippedUnchanged.get() != 0) {
+                appendMessage("Files skipped (unchanged since a previous run): " + statSkippedUnchanged.get());
+            }
+            if (statSkippedResumed.get() != 0) {
+                appendMessage("Files skipped (already done before resuming): " + statSkippedResumed.get());
+            }
+            if (statSkippedDuplicates.get() != 0) {
+                appendMessage("Files skipped (already written earlier in this run): " + statSkippedDuplicates.get());
+            }
+            if (statLinkedDuplicates.get() != 0) {
+                appendMessage("Duplicates linked or cloned instead of copied: " + statLinkedDuplicates.get()
+                        + " (" + ProgressTracker.formatBytes(statLinkedBytes.get()) + " saved)");
+            }
+            if (statCloned.get() != 0) {
+                appendMessage("Files cloned instead of copied: " + statCloned.get());
+            }
+            if (statHardLinked.get() != 0) {
+                appendMessage("Files hard linked to the original: " + statHardLinked.get());
+            }
+            if (this.mainOptions.shouldCopyToNewFolders() && statCopiedAlbums.get() != 0) {
+                appendMessage("Albums copied to Processed folder: " + statCopiedAlbums.get());
+            }
+            if (statFailedImages.get() != 0) {
+                appendMessage("See the full output for detailed failure reasons...");
+            }
+        }
+    }
+
+    private void processPosts() throws IOException, JSONException, InterruptedException {
+        // Find all album json files
+        appendMessage("Looking for albums...");
+        File albumDir = new File(dir.toPath() + File.separator + "album");
+        appendDebugMessage("In album dir: " + albumDir.getPath());
+
+        List<WorkPlan.Unit> albums = workPlan.getAlbums();
+        File[] albumHtmlFiles = albumDir.listFiles((dir, filename) -> filename.endsWith(".html"));
+
+        appendMessage(albums.size() + " JSON album files found");
+        appendMessage(Objects.requireNonNull(albumHtmlFiles).length + " HTML album files found");
+
+        // Stop if we detected no JSON but did find HTML
+        if (albums.isEmpty() && albumHtmlFiles.length != 0) {
+            appendMessage("This program currently only works with the JSON facebook downloads");
+            return;
+        }
+
+        // Process the albums, in the order planned
+        for (WorkPlan.Unit album : albums) {
+            File albumJsonFile = album.source;
+            if (checkpointJournal != null && checkpointJournal.isAlbumDone(albumJsonFile)) {
+                appendMessage("Skipping album file " + albumJsonFile.getName() + " (already done before resuming)");
+                continue;
+            }
+            appendDebugMessage("Loading album file " + albumJsonFile.getPath());
+
+            for (String error : album.errors) {
+                appendMessage("ERROR: Failed to read album file " + error);
+            }
+            if (!album.foundArray) {
+                appendDebugMessage("Album has no photos");
+                continue;
+            }
+
+            // Process the photos in the album first, spread over the worker threads, with the media streamed from the plan
+            MediaBatchQueue photoQueue = new MediaBatchQueue(this::processFiles, taggingStage);
+            String albumName;
+            try (WorkPlan.UnitReader albumReader = workPlan.read(album)) {
+                albumName = albumReader.getName();
+                if (album.mediaCount != 0) {
+                    appendMessage("Album: " + albumName);
+                }
+                WorkPlan.PlannedMedia photo;
+                while ((photo = albumReader.next()) != null) {
+                    appendDebugMessage("Getting photo data: " + photoQueue.getMedia().size());
+                    appendMessage(" - Processing " + photo.uri);
+                    photoQueue.add(photo.item);
+
+                    // If the task has been cancelled, then stop queueing images
+                    if (this.isCancelled()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Anything already queued still needs waiting for, so the workers are not left writing behind the next album
+                photoQueue.awaitResults();
+                throw e;
+            }
+
+            // Wait for the whole album, as the copy below works from the processed photos
+            for (Boolean processed : photoQueue.awaitResults()) {
+                if (processed) {
+                    statProcessedImages.incrementAndGet();
+                } else {
+                    statFailedImages.incrementAndGet();
+                }
+            }
+            appendDebugMessage("Album " + albumName + " had " + photoQueue.getMedia().size() + " photos");
+
+            // Copy album photos to Processed directory with proper folder names (after processing all photos)
+            if (this.mainOptions.shouldCopyToNewFolders() && albumName != null && !albumName.trim().isEmpty()) {
+                try {
+                    if (copyAlbumToProcessedFolder(albumJsonFile, albumName, photoQueue.getMedia())) {
+                        statCopiedAlbums.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    appendMessage("ERROR: Failed to copy album to processed folder: " + e.getMessage());
+                }
+            }
+
+            flushProcessedIndex();
+            // Only a whole album counts as done, one cut short by a cancel is picked up again on resume
+            if (!this.isCancelled()) {
+                markCheckpoint(() -> checkpointJournal.markAlbumDone(albumJsonFile));
+            }
+
+            // Hint to garbage collect after each album?
+            System.gc();
+
+            // If the task has been cancelled, then stop processing albums
+            if (this.isCancelled()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Collects media into chunks of the batch size, queueing each chunk onto the worker threads as soon as it is full,
+     * so that a whole chunk is written by a single exiftool call
+     */
+    private class MediaBatchQueue {
+        private final Function<List<MediaItem>, List<Boolean>> work;
+        private final ProgressTracker.Stage stage;
+        private final List<MediaItem> media = new ArrayList<>();
+        private final List<Future<List<Boolean>>> chunkResults = new ArrayList<>();
+        private final List<Integer> chunkSizes = new ArrayList<>();
+        private int queued = 0;
+
+        MediaBatchQueue(Function<List<MediaItem>, List<Boolean>> work, ProgressTracker.Stage stage) {
+            this.work = work;
+            this.stage = stage;
+        }
+
+        void add(MediaItem item) throws InterruptedException {
+            media.add(item);
+            if (media.size() - queued >= Math.max(1, mainOptions.getBatchSize())) {
+                queueChunk();
+            }
+        }
+
+        private void queueChunk() throws InterruptedException {
+            List<MediaItem> chunk = new ArrayList<>(media.subList(queued, media.size()));
+            queued = media.size();
+            chunkSizes.add(chunk.size());
+            stage.queued(chunk.size());
+            chunkResults.add(workerPool.submit(() -> {
+                List<Boolean> results = work.apply(chunk);
+                stage.finished(results);
+                return results;
+            }));
+        }
+
+        List<MediaItem> getMedia() {
+            return media;
+        }
+
+        /**
+         * Queues any partial chunk and waits for all of the work to finish
+         * @return The result for each item, in the order they were added, false for anything skipped
+         */
+        List<Boolean> awaitResults() throws InterruptedException {
+            if (queued < media.size()) {
+                queueChunk();
+            }
+            List<Boolean> results = new ArrayList<>(media.size());
+            for (int i = 0; i < chunkResults.size(); i++) {
+                List<Boolean> chunk;
+                try {
+                    chunk = workerPool.await(chunkResults.get(i));
+                } catch (ExecutionException e) {
+                    // A bug rather than a bad file, so say where it happened rather than only counting the files as failed
+                    appendMessage("ERROR: Failed to process " + chunkSizes.get(i) + " files: " + e.getCause());
+                    for (StackTraceElement frame : e.getCause().getStackTrace()) {
+                        appendDebugMessage("    at " + frame);
+                    }
+                    chunk = null;
+                }
+                // Anything skipped or lost due to an error counts as not processed
+                for (int j = 0; j < chunkSizes.get(i); j++) {
+                    results.add(chunk != null && j < chunk.size() && chunk.get(j));
+                }
+            }
+            return results;
+        }
+    }
+
+    private void processMessages() throws IOException, JSONException, InterruptedException {
+        // Look for messages in inbox and e2ee_cutover directories
+        File messagesDir = new File(dir.getParentFile().toPath() + File.separator + "messages");
+        if (!messagesDir.exists()) {
+            appendDebugMessage("Messages directory not found: " + messagesDir.getPath());
+            return;
+        }
+
+        // Process inbox messages
+        File inboxDir = new File(messagesDir.toPath() + File.separator + "inbox");
+        if (inboxDir.exists()) {
+            appendMessage("Processing inbox messages...");
+            processMessageDirectory(inboxDir);
+        }
+
+        // Process e2ee_cutover messages
+        File e2eeDir = new File(messagesDir.toPath() + File.separator + "e2ee_cutover");
+        if (e2eeDir.exists()) {
+            appendMessage("Processing e2ee_cutover messages...");
+            processMessageDirectory(e2eeDir);
+        }
+    }
+
+    /**
+     * The totals across the conversations of a message directory, added to from the conversation threads
+     */
+    private static class ConversationTotals {
+        final AtomicInteger photos = new AtomicInteger();
+        final AtomicInteger videos = new AtomicInteger();
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger conversationsCopied = new AtomicInteger();
+    }
+
+    private void processMessageDirectory(File messageDir) throws InterruptedException {
+        List<WorkPlan.Unit> conversations = workPlan.getConversations(messageDir);
+        if (conversations.isEmpty()) {
+            appendDebugMessage("No conversation directories found in: " + messageDir.getPath());
+            return;
+        }
+
+        // Conversations do not depend on each other, so several are parsed at once, each keeping its own media together for the copy
+        // The tagging and copying still goes through the worker pool, which limits how much of that happens at once
+        // The conversation threads spend most of their time waiting on the worker pool, so are plain threads rather than fork/join workers
+        ConversationTotals totals = new ConversationTotals();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService conversationPool = Executors.newFixedThreadPool(Math.max(2, workerThreads), runnable -> {
+            Thread thread = new Thread(runnable, "conversation-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Conversations with the same name are copied into the same folder, so those are still processed one after another
+        Map<String, List<WorkPlan.Unit>> conversationsByFolder = new LinkedHashMap<>();
+        Map<WorkPlan.Unit, String> folderNames = new HashMap<>();
+        for (WorkPlan.Unit conversation : conversations) {
+            String folderName = getConversationFolderName(conversation);
+            folderNames.put(conversation, folderName);
+            conversationsByFolder.computeIfAbsent(sanitizeFolderName(folderName).toLowerCase(Locale.ROOT), key -> new ArrayList<>()).add(conversation);
+        }
+        try {
+            List<Future<Void>> conversationTasks = new ArrayList<>();
+            for (List<WorkPlan.Unit> sameFolder : conversationsByFolder.values()) {
+                conversationTasks.add(conversationPool.submit(() -> {
+                    for (WorkPlan.Unit conversation : sameFolder) {
+                        // If the task has been cancelled, then stop processing conversations
+                        if (this.isCancelled()) {
+                            break;
+                        }
+                        try {
+                            processConversation(conversation, folderNames.get(conversation), totals);
+                        } catch (IOException | RuntimeException e) {
+                            appendMessage("ERROR: Failed to process conversation: " + e.getMessage());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> conversationTask : conversationTasks) {
+                try {
+                    conversationTask.get();
+                } catch (ExecutionException e) {
+                    // Interrupted conversations are down to the task being cancelled, which is reported at the end
+                    if (!(e.getCause() instanceof InterruptedException)) {
+                        appendMessage("ERROR: Failed to process conversation: " + e.getCause().getMessage());
+                    }
+                }
+            }
+        } finally {
+            conversationPool.shutdownNow();
+        }
+
+        appendMessage("Message processing complete:");
+        appendMessage("Photos processed: " + totals.photos.get());
+        appendMessage("Videos processed: " + totals.videos.get());
+        if (this.mainOptions.shouldProcessFiles()) {
+            appendMessage("Files processed: " + totals.files.get());
+        } else {
+            appendMessage("Files processing: disabled");
+        }
+        appendMessage("Failed: " + totals.failed.get());
+        statFailedMessageMedia.addAndGet(totals.failed.get());
+        if (this.mainOptions.shouldCopyToNewFolders()) {
+            appendMessage("Conversations copied to Processed/Messages folder: " + totals.conversationsCopied.get());
+        }
+    }
+
+    /**
+     * Works out the name of the folder a conversation is copied into, from the plan
+     * Use the conversation title if available, otherwise fall back to participant names, then the directory name
+     * @param conversation The conversation from the plan
+     * @return The name, before it is sanitized
+     */
+    private String getConversationFolderName(WorkPlan.Unit conversation) {
+        File conversationDir = conversation.source;
+        String conversationTitle = null;
+        String conversationName = null;
+        try (WorkPlan.UnitReader conversationReader = workPlan.read(conversation)) {
+            conversationTitle = conversationReader.getName();
+            // The conversation name from the participants is the fallback
+            JSONArray participants = conversationReader.getParticipants();
+            conversationName = participants != null ? buildConversationName(participants) : null;
+        } catch (IOException e) {
+            appendDebugMessage("Could not read the name of conversation " + conversationDir.getName() + " from the plan: " + e.getMessage());
+        }
+
+        if (conversationTitle != null && !conversationTitle.trim().isEmpty()) {
+            appendDebugMessage("Using conversation title as folder name: " + conversationTitle);
+            return conversationTitle;
+        } else if (conversationName != null) {
+            appendDebugMessage("Using participant names as folder name: " + conversationName);
+            return conversationName;
+        }
+        appendDebugMessage("Using directory name as folder name: " + conversationDir.getName());
+        return conversationDir.getName();
+    }
+
+    /**
+     * Processes a single conversation, run on one of the conversation threads
+     * @param conversation The conversation from the plan
+     * @param folderName The name of the folder to copy the conversation into
+     * @param totals The totals to add this conversation to
+     */
+    private void processConversation(WorkPlan.Unit conversation, String folderName, ConversationTotals totals) throws IOException, InterruptedException {
+        File conversationDir = conversation.source;
+        if (checkpointJournal != null && checkpointJournal.isConversationDone(conversationDir)) {
+            appendDebugMessage("Skipping conversation " + conversationDir.getName() + " (already done before resuming)");
+            return;
+        }
+        appendDebugMessage("Processing conversation: " + conversationDir.getName());
+        
+        // Look for JSON files in the conversation directory
+        if (conversation.jsonFiles.isEmpty()) {
+            appendDebugMessage("No JSON files found in conversation: " + conversationDir.getName());
+            return;
+        }
+        for (String error : conversation.errors) {
+            appendMessage("ERROR: Failed to process message file " + error);
+        }
+
+        // The media was read when planning, and is streamed from the plan onto the workers as it is queued
+        MediaBatchQueue mediaQueue = new MediaBatchQueue(this::processFiles, taggingStage);
+        try (WorkPlan.UnitReader conversationReader = workPlan.read(conversation)) {
+            WorkPlan.PlannedMedia media;
+            while ((media = conversationReader.next()) != null) {
+                mediaQueue.add(media.item);
+
+                // If the task has been cancelled, then stop queueing media
+                if (this.isCancelled()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Anything already queued still needs waiting for, so the workers are not left writing behind the next conversation
+            mediaQueue.awaitResults();
+            throw e;
+        }
+        appendDebugMessage("Queued " + mediaQueue.getMedia().size() + " media from " + conversation.jsonFiles.size() + " message files");
+
+        // Wait for the conversation to finish processing, keeping the successful media in their original order
+        List<MediaItem> conversationMedia = new ArrayList<>();
+        List<Boolean> results = mediaQueue.awaitResults();
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.get(i)) {
+                totals.failed.incrementAndGet();
+                continue;
+            }
+            MediaItem item = mediaQueue.getMedia().get(i);
+            switch (item.kind) {
+                case "photos":
+                    totals.photos.incrementAndGet();
+                    break;
+                case "videos":
+                    totals.videos.incrementAndGet();
+                    break;
+                default:
+                    // Categorize files based on file extension
+                    if (isVideoFile(item.uri)) {
+                        totals.videos.incrementAndGet();
+                    } else {
+                        totals.files.incrementAndGet();
+                    }
+            }
+            conversationMedia.add(item);
+        }
+
+        // Copy conversation media to Processed/Messages directory
+        if (this.mainOptions.shouldCopyToNewFolders() && !conversationMedia.isEmpty()) {
+            try {
+                if (copyConversationToProcessedFolder(conversationDir, folderName, conversationMedia)) {
+                    totals.conversationsCopied.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                appendMessage("ERROR: Failed to copy conversation to processed folder: " + e.getMessage());
+            }
+        }
+
+        flushProcessedIndex();
+        if (!this.isCancelled()) {
+            markCheckpoint(() -> checkpointJournal.markConversationDone(conversationDir));
+        }
+    }
+
+    /**
+     * Writes out the files recorded in the index so far, so they are not lost if the run is killed
+     */
+    private void flushProcessedIndex() {
+        if (processedIndex == null) {
+            return;
+        }
+        try {
+            processedIndex.flush();
+        } catch (IOException e) {
+            appendDebugMessage("Could not write the index of processed files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Something to record in the checkpoint journal
+     */
+    private interface Checkpoint {
+        void mark() throws IOException;
+    }
+
+    /**
+     * Records progress in the checkpoint journal, if there is one
+     */
+    private void markCheckpoint(Checkpoint checkpoint) {
+        if (checkpointJournal == null) {
+            return;
+        }
+        try {
+            checkpoint.mark();
+        } catch (IOException e) {
+            appendDebugMessage("Could not write to the checkpoint journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hashes the tags for the index
+     * @param exifData The tags that will be written
+     * @param hasModifiedTimestamp Whether the modified date came from the export, rather than being the current time
+     */
+    private String hashTagsForIndex(Map<Tag, String> exifData, boolean hasModifiedTimestamp) {
+        // A modified date of "today" changes from run to run, so it would stop anything from being skipped
+        if (hasModifiedTimestamp) {
+            return ProcessedIndex.hashTags(exifData);
+        }
+        Map<Tag, String> hashedData = new HashMap<>(exifData);
+        hashedData.remove(CustomTag.MODIFYDATE);
+        return ProcessedIndex.hashTags(hashedData);
+    }
+
+    /**
+     * @return Whether a uri is for a video, going by its extension
+     */
+    static boolean isVideoFile(String uri) {
+        if (uri == null) return false;
+        return VIDEO_EXTENSIONS.contains(getExtension(uri));
+    }
+
+    /**
+     * @return The lower case extension of a file name or uri, without the dot, or an empty string
+     */
+    private static String getExtension(String name) {
+        String lowerName = name.toLowerCase();
+        int dot = lowerName.lastIndexOf('.');
+        return dot < 0 || dot < lowerName.lastIndexOf('/') ? "" : lowerName.substring(dot + 1);
+    }
+
+    /**
+     * @param file The file the tags are for
+     * @return Whether the tags go in an XMP sidecar, rather than into the file itself
+     */
+    private boolean shouldUseSidecar(File file) {
+        return this.mainOptions.shouldUseSidecar(file.getName(), file.length());
+    }
+
+    /**
+     * Builds a conversation name from the participants array
+     * @param participants The participants array from the message JSON
+     * @return A sanitized conversation name
+     */
+    private String buildConversationName(JSONArray participants) {
+        if (participants == null || participants.length() == 0) {
+            return "unnamed_conversation";
+        }
+
+        StringBuilder nameBuilder = new StringBuilder();
+        for (int i = 0; i < participants.length(); i++) {
+            try {
+                JSONObject participant = participants.getJSONObject(i);
+                if (participant.has("name")) {
+                    if (nameBuilder.length() > 0) {
+                        nameBuilder.append("_");
+                    }
+                    nameBuilder.append(participant.getString("name"));
+                }
+            } catch (JSONException e) {
+                appendDebugMessage("Warning: Could not parse participant " + i + ": " + e.getMessage());
+            }
+        }
+
+        String conversationName = nameBuilder.toString();
+        if (conversationName.isEmpty()) {
+            return "unnamed_conversation";
+        }
+
+        return sanitizeFolderName(conversationName);
+    }
+
+    /**
+     * Copies conversation media to a new "Processed/Messages" directory with properly named folders
+     * @param conversationDir The conversation directory
+     * @param conversationName The name to use for the new folder
+     * @param conversationMedia The media from the conversation
+     * @return true if files were copied successfully, false otherwise
+     */
+    private Boolean copyConversationToProcessedFolder(File conversationDir, String conversationName, List<MediaItem> conversationMedia) throws IOException, InterruptedException {
+        if (conversationMedia.isEmpty()) {
+            appendDebugMessage("No media in conversation, skipping copy");
+            return false;
+        }
+
+        // Sanitize the conversation name for use as a folder name
+        String sanitizedConversationName = sanitizeFolderName(conversationName);
+        appendDebugMessage("Sanitized conversation name: " + sanitizedConversationName);
+        
+        // Create the Processed/Messages directory structure
+        File processedDir = getProcessedDir();
+        File messagesDir = new File(processedDir.toPath() + File.separator + "Messages");
+        File conversationDirDest = new File(messagesDir.toPath() + File.separator + sanitizedConversationName);
+        
+        appendDebugMessage("Processed directory: " + processedDir.getPath());
+        appendDebugMessage("Messages directory: " + messagesDir.getPath());
+        appendDebugMessage("Conversation directory: " + conversationDirDest.getPath());
+        
+        // Create directories if they don't exist
+        if (!processedDir.mkdirs() && !processedDir.isDirectory()) {
+            appendMessage("ERROR: Failed to create Processed directory: " + processedDir.getPath());
+            return false;
+        }
+        if (!messagesDir.mkdirs() && !messagesDir.isDirectory()) {
+            appendMessage("ERROR: Failed to create Messages directory: " + messagesDir.getPath());
+            return false;
+        }
+        if (!conversationDirDest.mkdirs() && !conversationDirDest.isDirectory()) {
+            appendMessage("ERROR: Failed to create conversation directory: " + conversationDirDest.getPath());
+            return false;
+        }
+        
+        // Copy each media file
+        MediaBatchQueue copyQueue = new MediaBatchQueue(media -> copyMediaFiles(media, conversationDirDest), copyingStage);
+        for (MediaItem item : conversationMedia) {
+            copyQueue.add(item);
+        }
+        List<Boolean> copyResults = copyQueue.awaitResults();
+        int copiedFiles = Collections.frequency(copyResults, true);
+        int failedFiles = copyResults.size() - copiedFiles;
+        
+        if (copiedFiles > 0) {
+            appendMessage("Copied " + copiedFiles + " files to '" + sanitizedConversationName + "' conversation folder");
+            if (failedFiles > 0) {
+                appendMessage("Failed to copy " + failedFiles + " files");
+            }
+            return true;
+        } else {
+            appendMessage("ERROR: No files were copied successfully");
+            return false;
+        }
+    }
+
+    /**
+     * Processes a chunk of media files, run on a worker thread
+     * @param media The media to process
+     * @return The result for each file, in the same order
+     */
+    private List<Boolean> processFiles(List<MediaItem> media) {
+        List<Boolean> results = new ArrayList<>(media.size());
+        List<PendingExifWrite> writes = new ArrayList<>();
+        List<Integer> writeOwners = new ArrayList<>();
+
+        for (MediaItem item : media) {
+            int writesBefore = writes.size();
+            results.add(processFile(item, writes));
+            if (writes.size() > writesBefore) {
+                writeOwners.add(results.size() - 1);
+            }
+        }
+
+        List<Boolean> written = writeExifData(writes);
+        for (int i = 0; i < written.size(); i++) {
+            results.set(writeOwners.get(i), written.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Works out the EXIF data for a single media file
+     * @param item The media to process
+     * @param writes Any EXIF data that needs writing to the file is added here
+     * @return true if the file was processed successfully, false otherwise
+     */
+    private Boolean processFile(MediaItem item, List<PendingExifWrite> writes) {
+        File imageFile = item.file;
+        appendDebugMessage("Image file path: " + imageFile.getPath());
+
+        if (sourceFiles.size(imageFile) < 0) {
+            appendMessage("ERROR: the file does not exist in the expected location. Is your download complete?");
+            return false;
+        }
+        
+        // If we're copying to new folders, we don't need to check if the original is writable
+        // since we won't be modifying it
+        if (!this.mainOptions.shouldCopyToNewFolders() && !imageFile.canWrite()) {
+            appendMessage("ERROR: the file is not writable.");
+            return false;
+        }
+
+        MetadataMapper.Result metadata = item.getMetadata(mainOptions.getTimeZone(), this::appendDebugMessage);
+        if (metadata == null) {
+            appendMessage("Skipping image (due to no meta data found)");
+            return false;
+        }
+        Map<Tag, String> exifData = metadata.exifData;
+        String takenTimestamp = metadata.takenTimestamp;
+
+        // This can be used to add more args to the execution of exiftool
+        Format format = CustomFormat.DEFAULT;
+        if (mainOptions.shouldOverwriteOriginals()) {
+            format = CustomFormat.DEFAULT_OVERWRITE_ORIGINAL;
+        }
+
+        // If we're copying to new folders, don't modify the original files
+        // The EXIF data will be written to the copied files instead
+        if (!this.mainOptions.shouldCopyToNewFolders()) {
+            if (checkpointJournal != null && checkpointJournal.isFileDone(imageFile)) {
+                appendDebugMessage("skipping setImageMeta for " + item.uri + " (already done before resuming)");
+                statSkippedResumed.incrementAndGet();
+                return true;
+            }
+            String tagsHash = hashTagsForIndex(exifData, metadata.hasModifiedTimestamp);
+            if (processedIndex != null && processedIndex.isUpToDate(imageFile, imageFile, tagsHash)) {
+                appendDebugMessage("skipping setImageMeta for " + item.uri + " (unchanged since a previous run)");
+                statSkippedUnchanged.incrementAndGet();
+                return true;
+            }
+            // Written in place, so only the same file can have been written already, and there is no need to compare content
+            if (duplicateIndex != null && duplicateIndex.findWrittenFrom(imageFile, tagsHash) != null) {
+                appendDebugMessage("skipping setImageMeta for " + item.uri + " (already written earlier in this run)");
+                statSkippedDuplicates.incrementAndGet();
+                return true;
+            }
+            // The write itself happens once the rest of the batch is ready
+            writes.add(new PendingExifWrite(imageFile, format, exifData, metadata.takenTime, imageFile, tagsHash, false));
+            return true;
+        }
+
+        appendDebugMessage("skipping setImageMeta for " + item.uri + " (will process copied files instead)");
+        if (takenTimestamp != null) {
+            appendDebugMessage("Will set file timestamps on copied files to taken timestamp: " + takenTimestamp);
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies album photos to a new "Processed" directory with properly named folders
+     * @param albumJsonFile The JSON file containing album information
+     * @param albumName The name to use for the new folder
+     * @param albumPhotos The photos from the album
+     * @return true if files were copied successfully, false otherwise
+     */
+    private Boolean copyAlbumToProcessedFolder(File albumJsonFile, String albumName, List<MediaItem> albumPhotos) throws IOException, InterruptedException {
+        if (albumPhotos.isEmpty()) {
+            appendDebugMessage("No photos in album, skipping copy");
+            return false;
+        }
+
+        // Sanitize the album name for use as a folder name
+        String sanitizedAlbumName = sanitizeFolderName(albumName);
+        appendDebugMessage("Sanitized album name: " + sanitizedAlbumName);
+        
+        // Create the Processed directory structure
+        File processedDir = getProcessedDir();
+        File albumDir = new File(processedDir.toPath() + File.separator + sanitizedAlbumName);
+        
+        appendDebugMessage("Processed directory: " + processedDir.getPath());
+        appendDebugMessage("Album directory: " + albumDir.getPath());
+        
+        // Create directories if they don't exist
+        if (!processedDir.mkdirs() && !processedDir.isDirectory()) {
+            appendMessage("ERROR: Failed to create Processed directory: " + processedDir.getPath());
+            return false;
+        }
+        if (!albumDir.mkdirs() && !albumDir.isDirectory()) {
+            appendMessage("ERROR: Failed to create album directory: " + albumDir.getPath());
+            return false;
+        }
+        
+        // Copy each photo file
+        MediaBatchQueue copyQueue = new MediaBatchQueue(media -> copyMediaFiles(media, albumDir), copyingStage);
+        for (MediaItem photo : albumPhotos) {
+            copyQueue.add(photo);
+        }
+        List<Boolean> copyResults = copyQueue.awaitResults();
+        int copiedFiles = Collections.frequency(copyResults, true);
+        int failedFiles = copyResults.size() - copiedFiles;
+        
+        if (copiedFiles > 0) {
+            appendMessage("Copied " + copiedFiles + " files to '" + sanitizedAlbumName + "' folder");
+            if (failedFiles > 0) {
+                appendMessage("Failed to copy " + failedFiles + " files");
+            }
+            return true;
+        } else {
+            appendMessage("ERROR: No files were copied successfully");
+            return false;
+        }
+    }
+
+    /**
+     * Copies a chunk of media files into a folder under Processed and writes the EXIF data to the copies, run on a worker thread
+     * @param media The media to copy
+     * @param destDir The folder to copy the files into
+     * @return The result for each file, in the same order
+     */
+    private List<Boolean> copyMediaFiles(List<MediaItem> media, File destDir) {
+        List<Boolean> results = new ArrayList<>(media.size());
+        List<PendingExifWrite> writes = new ArrayList<>();
+        List<Integer> writeOwners = new ArrayList<>();
+
+        for (MediaItem item : media) {
+            int writesBefore = writes.size();
+            results.add(copyMediaFile(item, destDir, writes));
+            if (writes.size() > writesBefore) {
+                writeOwners.add(results.size() - 1);
+            }
+        }
+
+        List<Boolean> written = writeExifData(writes);
+        for (int i = 0; i < written.size(); i++) {
+            File destFile = writes.get(i).file;
+            if (written.get(i)) {
+                appendDebugMessage("Successfully copied and processed: " + destFile.getName());
+            } else {
+                appendMessage("ERROR: Failed to process copied file " + destFile.getName());
+            }
+            results.set(writeOwners.get(i), written.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Copies a single media file into a folder under Processed
+     * @param item The media to copy
+     * @param destDir The folder to copy the file into
+     * @param writes The EXIF data that needs writing to the copy is added here
+     * @return true if the file was copied, false otherwise
+     */
+    private Boolean copyMediaFile(MediaItem item, File destDir, List<PendingExifWrite> writes) {
+        File sourceFile = item.file;
+        String fileName = item.getFileName();
+
+        // Create the destination file path
+        File destFile = new File(destDir.toPath() + File.separator + fileName);
+
+        appendDebugMessage("Copying: " + sourceFile.getPath() + " -> " + destFile.getPath());
+
+        long sourceSize = sourceFiles.size(sourceFile);
+        if (sourceSize < 0) {
+            appendMessage("ERROR: Source file does not exist: " + sourceFile.getPath());
+            return false;
+        }
+
+        if (checkpointJournal != null && checkpointJournal.isFileDone(destFile)) {
+            appendDebugMessage("Skipping " + fileName + " (already done before resuming)");
+            statSkippedResumed.incrementAndGet();
+            return true;
+        }
+
+        // Work out the EXIF data for the copied file first, so that a copy that is already up to date can be left alone
+        List<PendingExifWrite> copyWrites = new ArrayList<>(1);
+        if (!processCopiedFile(sourceFile, destFile, item, copyWrites)) {
+            appendMessage("ERROR: Failed to process copied file " + fileName);
+            return false;
+        }
+        PendingExifWrite write = copyWrites.get(0);
+        if (processedIndex != null && processedIndex.isUpToDate(sourceFile, destFile, write.tagsHash)) {
+            appendDebugMessage("Skipping " + fileName + " (unchanged since a previous run)");
+            statSkippedUnchanged.incrementAndGet();
+            return true;
+        }
+        if (linkDuplicate(write)) {
+            return true;
+        }
+
+        try {
+            if (write.copyFromSource) {
+                // exiftool writes the copy itself, and refuses to write over a file that is already there
+                Files.deleteIfExists(destFile.toPath());
+            } else {
+                // Copy the file while preserving metadata, by the output strategy
+                placeFile(sourceFile, destFile, this.mainOptions.shouldUseSidecar(fileName, sourceSize), write.takenTime);
+            }
+        } catch (IOException e) {
+            appendMessage("ERROR: Failed to copy file " + fileName + ": " + e.getMessage());
+            return false;
+        }
+
+        writes.add(write);
+        return true;
+    }
+
+    /**
+     * Writes EXIF data to files, and sets the file times to the taken timestamp
+     * JPEGs are written by the built in writer where possible, and everything else is written by exiftool
+     * @param writes The EXIF data to write
+     * @return The result for each write, in the same order
+     */
+    private List<Boolean> writeExifData(List<PendingExifWrite> writes) {
+        List<Boolean> results = new ArrayList<>(Collections.nCopies(writes.size(), false));
+        List<PendingExifWrite> exifToolWrites = new ArrayList<>();
+        List<Integer> exifToolOwners = new ArrayList<>();
+
+        for (int i = 0; i < writes.size(); i++) {
+            PendingExifWrite write = writes.get(i);
+            if (shouldUseSidecar(write.getExifToolInput())) {
+                results.set(i, writeSidecar(write));
+                continue;
+            }
+            if (this.mainOptions.shouldUseNativeJpegWriter() && JpegExifWriter.canWrite(write.getExifToolInput(), write.exifData)) {
+                try {
+                    // Without a backup to keep, a file that already has room for every tag only needs those bytes changing
+                    if (!write.copyFromSource && !write.keepsBackup() && JpegExifWriter.patchInPlace(write.file, write.exifData)) {
+                        appendDebugMessage("patched EXIF data in place for " + write.file.getPath());
+                        results.set(i, true);
+                        continue;
+                    }
+                    if (JpegExifWriter.write(write.getExifToolInput(), write.file, write.exifData, write.keepsBackup())) {
+                        appendDebugMessage("wrote EXIF data without exiftool for " + write.file.getPath());
+                        results.set(i, true);
+                        continue;
+                    }
+                    appendDebugMessage("built in JPEG writer can not handle " + write.file.getPath() + ", using exiftool");
+                } catch (IOException ioException) {
+                    // exiftool gets to try the file instead, as it does for anything the built in writer declines
+                    appendMessage("WARNING: built in JPEG writer failed for " + write.file.getPath() + ", using exiftool: " + ioException.getMessage());
+                }
+            }
+            exifToolWrites.add(write);
+            exifToolOwners.add(i);
+        }
+
+        List<Boolean> exifToolResults = writeWithExifTool(exifToolWrites);
+        for (int i = 0; i < exifToolResults.size(); i++) {
+            results.set(exifToolOwners.get(i), exifToolResults.get(i));
+        }
+
+        for (int i = 0; i < writes.size(); i++) {
+            PendingExifWrite write = writes.get(i);
+            if (!results.get(i)) {
+                if (write.copyFromSource) {
+                    // Still copy the file, untagged, as happens when tagging a copy fails
+                    try {
+                        copyFileWithMetadata(write.sourceFile, write.file);
+                    } catch (IOException e) {
+                        appendMessage("ERROR: Failed to copy file " + write.file.getName() + ": " + e.getMessage());
+                    }
+                }
+                // The untagged copy goes in the archive, as it would be left in the Processed folder
+                addToArchive(write);
+                continue;
+            }
+            if (isLinkedToSource(write)) {
+                // Changing the times of a hard link would change the original, which is only linked when its times are already right
+                appendDebugMessage("leaving the file times of " + write.file.getPath() + " as it is linked to the original");
+            } else if (write.takenTime != MediaItem.NO_TIMESTAMP) {
+                setFileTimestamps(write.file, write.takenTime);
+            } else if (write.copyFromSource) {
+                // exiftool gives a new file the current time, where a copy would have kept the times of the original
+                copyFileTimestamps(write.sourceFile, write.file);
+            }
+            progress.addBytesWritten(write.file.length());
+            recordWritten(write);
+            if (duplicateIndex != null && write.tagsHash != null) {
+                duplicateIndex.add(write.sourceFile, write.file, write.tagsHash);
+            }
+            addToArchive(write);
+        }
+        return results;
+    }
+
+    /**
+     * Records a finished file in the index and the checkpoint journal
+     * Recorded last, so that the index holds the final size and times of the file
+     */
+    private void recordWritten(PendingExifWrite write) {
+        if (processedIndex != null && write.tagsHash != null) {
+            try {
+                processedIndex.record(write.sourceFile, write.file, write.tagsHash);
+            } catch (IOException e) {
+                appendDebugMessage("Could not record " + write.file.getPath() + " in the index: " + e.getMessage());
+            }
+        }
+        markCheckpoint(() -> checkpointJournal.markFileDone(write.file));
+    }
+
+    /**
+     * @return A file already written this run from the same media with the same tags, or null if there is none
+     */
+    private File findDuplicate(File sourceFile, String tagsHash) {
+        if (duplicateIndex == null) {
+            return null;
+        }
+        try {
+            return duplicateIndex.findWritten(sourceFile, tagsHash);
+        } catch (IOException e) {
+            appendDebugMessage("Could not check " + sourceFile.getName() + " for duplicates: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Hard links (or where the filesystem can not, clones) a copy to a file already written this run from the same media with the same tags,
+     * instead of copying and tagging it again. Where the tags of the file already written are in an XMP sidecar, the sidecar is linked too.
+     * @param write The copy that would otherwise be written
+     * @return true if the copy was linked, false if it needs writing
+     */
+    private boolean linkDuplicate(PendingExifWrite write) {
+        File duplicate = findDuplicate(write.sourceFile, write.tagsHash);
+        if (duplicate == null || duplicate.equals(write.file)) {
+            return false;
+        }
+        File destDir = write.file.getParentFile();
+        File duplicateSidecar = XmpSidecarWriter.sidecarFor(duplicate);
+        File sidecar = XmpSidecarWriter.sidecarFor(write.file);
+        try {
+            if (fileSystems.canHardLink(duplicate, destDir)) {
+                Files.deleteIfExists(write.file.toPath());
+                Files.createLink(write.file.toPath(), duplicate.toPath());
+                if (duplicateSidecar.exists()) {
+                    Files.deleteIfExists(sidecar.toPath());
+                    Files.createLink(sidecar.toPath(), duplicateSidecar.toPath());
+                }
+                appendDebugMessage("Linked duplicate " + write.file.getPath() + " to " + duplicate.getPath());
+            } else if (fileSystems.canClone(duplicate, destDir)) {
+                FileSystemCapabilities.cloneFile(duplicate, write.file);
+                if (duplicateSidecar.exists()) {
+                    FileSystemCapabilities.cloneFile(duplicateSidecar, sidecar);
+                }
+                appendDebugMessage("Cloned duplicate " + write.file.getPath() + " from " + duplicate.getPath());
+            } else {
+                return false;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            appendDebugMessage("Could not link " + write.file.getName() + " to " + duplicate.getPath() + ", copying instead: " + e.getMessage());
+            // Don't leave a link behind that the copy would be written through
+            try {
+                Files.deleteIfExists(write.file.toPath());
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        statLinkedDuplicates.incrementAndGet();
+        statLinkedBytes.addAndGet(write.file.length());
+        recordWritten(write);
+        return true;
+    }
+
+    /**
+     * Writes the tags to an XMP sidecar, leaving the media file itself alone apart from its file times
+     * @param write The EXIF data to write
+     * @return true if the sidecar was written
+     */
+    private boolean writeSidecar(PendingExifWrite write) {
+        try {
+            // When copying in a single pass there is no copy yet, as exiftool was going to write it
+            if (write.copyFromSource) {
+                placeFile(write.sourceFile, write.file, true, write.takenTime);
+            }
+            XmpSidecarWriter.write(write.file, write.exifData);
+            appendDebugMessage("wrote XMP sidecar " + XmpSidecarWriter.sidecarFor(write.file).getPath());
+            return true;
+        } catch (IOException ioException) {
+            appendMessage("Something went wrong while writing the XMP sidecar for " + write.file.getPath());
+            appendMessage("ERROR: " + ioException.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes EXIF data to files with exiftool
+     * With a batch size above 1 the whole list is sent to one exiftool without waiting between files, otherwise each file is written in turn
+     * Either way each file has its own time limit, and is tried again with a new exiftool if it is not met
+     * @param writes The EXIF data to write
+     * @return The result for each write, in the same order
+     */
+    private List<Boolean> writeWithExifTool(List<PendingExifWrite> writes) {
+        if (mainOptions.getBatchSize() <= 1 || writes.size() <= 1) {
+            return writeEachWithExifTool(writes);
+        }
+
+        appendDebugMessage("calling exiftool for a batch of " + writes.size() + " files");
+        List<String> errors;
+        try {
+            errors = supervisedExifTool.writeBatch(writes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>(Collections.nCopies(writes.size(), false));
+        }
+        List<Boolean> results = new ArrayList<>(writes.size());
+        for (int i = 0; i < writes.size(); i++) {
+            String error = errors.get(i);
+            if (error != null) {
+                appendMessage("Something went wrong while writing data to the image.");
+                appendMessage("ERROR: " + writes.get(i).file.getPath() + ": " + error);
+                appendMessage("Image has not been processed entirely");
+            }
+            results.add(error == null);
+        }
+        return results;
+    }
+
+    /**
+     * Writes EXIF data to files with exiftool, one file at a time
+     * Each file is given a time limit, and is tried again with a new exiftool if it is not met
+     * @param writes The EXIF data to write
+     * @return The result for each write, in the same order
+     */
+    private List<Boolean> writeEachWithExifTool(List<PendingExifWrite> writes) {
+        List<Boolean> results = new ArrayList<>(writes.size());
+        for (PendingExifWrite write : writes) {
+            appendDebugMessage("calling exiftool for " + write.file.getPath());
+            String error;
+            try {
+                error = supervisedExifTool.write(write);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "Interrupted";
+            }
+            if (error != null) {
+                appendMessage("Something went wrong while writing data to the image.");
+                appendMessage("ERROR: " + write.file.getPath() + ": " + error);
+                appendMessage("Image has not been processed entirely");
+            }
+            results.add(error == null);
+        }
+        return results;
+    }
+
+    /**
+     * Lists the files that exiftool kept failing on, in the log and in a file in the state directory, so they can be looked at
+     */
+    private void reportQuarantined() {
+        List<SupervisedExifTool.Quarantined> quarantined = supervisedExifTool.getQuarantined();
+        if (supervisedExifTool.getRestartCount() > 0) {
+            appendMessage("exiftool was restarted " + supervisedExifTool.getRestartCount() + " times");
+        }
+        File reportFile = new File(getStateDir(), QUARANTINE_FILE);
+        if (quarantined.isEmpty()) {
+            // The list is of the last run, files from an earlier one have been tried again
+            if (!reportFile.delete() && reportFile.exists()) {
+                appendDebugMessage("Could not remove " + reportFile.getPath());
+            }
+            return;
+        }
+        appendMessage("Quarantined " + quarantined.size() + " files that exiftool could not write within " + SupervisedExifTool.MAX_ATTEMPTS + " attempts:");
+        StringBuilder report = new StringBuilder();
+        for (SupervisedExifTool.Quarantined file : quarantined) {
+            appendMessage("  " + file.file.getPath() + " (" + file.reason + ")");
+            report.append(file.file.getPath()).append('\t').append(file.reason).append('\n');
+        }
+        try {
+            Files.createDirectories(getStateDir().toPath());
+            Files.write(reportFile.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+            appendMessage("The quarantined files are listed in " + reportFile.getPath());
+        } catch (IOException e) {
+            appendMessage("WARNING: Could not write " + reportFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the creation and modified times of a file to the taken timestamp
+     * @param file The file to update
+     * @param takenTime The taken time, as a unix timestamp
+     */
+    private void setFileTimestamps(File file, long takenTime) {
+        FileTime takenFileTime = ExifTimestamps.toFileTime(takenTime);
+
+        // Set both creation and modified times to the taken timestamp
+        try {
+            Files.setLastModifiedTime(file.toPath(), takenFileTime);
+            appendDebugMessage("Successfully set file modification time to taken timestamp: " + takenFileTime);
+        } catch (Exception e) {
+            appendDebugMessage("Warning: Could not set file modification time");
+        }
+
+        // Try to set creation time using NIO (works on some systems)
+        try {
+            Files.setAttribute(
+                file.toPath(),
+                "basic:creationTime",
+                takenFileTime
+            );
+            appendDebugMessage("Successfully set file creation time to taken timestamp: " + takenFileTime);
+        } catch (Exception e) {
+            appendDebugMessage("Warning: Could not set file creation time (this is normal on some systems): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sanitizes a string to be used as a folder name by removing/replacing invalid characters
+     * while preserving non-English characters and Unicode support
+     * @param name The original name
+     * @return A sanitized folder name
+     */
+    static String sanitizeFolderName(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return "unnamed_album";
+        }
+        
+        // Normalize Unicode characters (combines characters and their modifiers)
+        String sanitized = java.text.Normalizer.normalize(name, java.text.Normalizer.Form.NFC);
+        
+        // Replace Windows-specific invalid characters with underscores
+        // Note: We preserve most Unicode characters including non-English scripts
+        sanitized = sanitized.replaceAll("[<>:\"/\\|?*\u0000-\u001F\u007F-\u009F]", "_");
+        
+        // Remove quotation marks
+        sanitized = sanitized.replaceAll("[\"']", "");
+        
+        // Remove leading/trailing spaces, dots, and other problematic characters
+        sanitized = sanitized.trim();
+        sanitized = sanitized.replaceAll("^[\\s\\.]+|[\\s\\.]+$", "");
+        
+        // Remove control characters and other problematic Unicode ranges
+        sanitized = sanitized.replaceAll("[\\p{Cntrl}\\p{Space}]+", " ");
+        
+        // Replace multiple consecutive underscores with a single one
+        sanitized = sanitized.replaceAll("_+", "_");
+        
+        // Remove leading/trailing underscores
+        sanitized = sanitized.replaceAll("^_+|_+$", "");
+        
+        // Limit length to avoid filesystem issues (keeping it reasonable for most filesystems)
+        if (sanitized.length() > 200) {
+            sanitized = sanitized.substring(0, 200);
+            // Ensure we don't cut in the middle of a Unicode character
+            while (sanitized.length() > 0 && !Character.isHighSurrogate(sanitized.charAt(sanitized.length() - 1))) {
+                sanitized = sanitized.substring(0, sanitized.length() - 1);
+            }
+        }
+        
+        // Ensure it's not empty after sanitization
+        if (sanitized.trim().isEmpty()) {
+            return "unnamed_album";
+        }
+        
+        return sanitized;
+    }
+
+    /**
+     * Works out the EXIF data and timestamps for a copied file
+     * @param sourceFile The file the copy is made from
+     * @param destFile The destination file to process
+     * @param item The media the file was copied for
+     * @param writes The EXIF data that needs writing to the copied file is added here
+     * @return true if processing was successful, false otherwise
+     */
+    private Boolean processCopiedFile(File sourceFile, File destFile, MediaItem item, List<PendingExifWrite> writes) {
+        MetadataMapper.Result metadata = item.getMetadata(mainOptions.getTimeZone(), this::appendDebugMessage);
+        if (metadata == null) {
+            appendMessage("Skipping image (due to no meta data found)");
+            return false;
+        }
+        Map<Tag, String> exifData = metadata.exifData;
+
+        // This can be used to add more args to the execution of exiftool
+        Format format = CustomFormat.DEFAULT;
+        // A backup of a copy being written to an archive would only be thrown away
+        if (mainOptions.shouldOverwriteOriginals() || archive != null) {
+            format = CustomFormat.DEFAULT_OVERWRITE_ORIGINAL;
+        }
+
+        // The write itself happens once the rest of the batch is ready
+        writes.add(new PendingExifWrite(
+                destFile,
+                format,
+                exifData,
+                metadata.takenTime,
+                sourceFile,
+                hashTagsForIndex(exifData, metadata.hasModifiedTimestamp),
+                // exiftool can only read the original from disk, not from a ZIP file
+                this.mainOptions.shouldCopyInSinglePass() && zipExport == null
+        ));
+
+        return true;
+    }
+
+    /**
+     * Puts a copy of a file in the Processed folder, as the output strategy says
+     * Hard links and clones are only made where the filesystem has been seen to support them, and anything else is copied
+     * @param source The source file
+     * @param dest The destination file
+     * @param contentUnchanged Whether the content of dest will be left as it is, so that it can be the same file as source
+     * @param takenTime The taken time that dest will be given as its file times, or MediaItem.NO_TIMESTAMP
+     * @throws IOException if the copy operation fails
+     */
+    private void placeFile(File source, File dest, boolean contentUnchanged, long takenTime) throws IOException {
+        if (zipExport != null) {
+            extractFile(source, dest);
+            return;
+        }
+        OutputStrategy strategy = this.mainOptions.getOutputStrategy();
+        File destDir = dest.getParentFile();
+        // A hard link shares its file times with the original, which copying must not change
+        boolean timesUnchanged = takenTime == MediaItem.NO_TIMESTAMP
+                || source.lastModified() == ExifTimestamps.toFileTime(takenTime).toMillis();
+        if (strategy == OutputStrategy.HARDLINK && contentUnchanged && timesUnchanged && fileSystems.canHardLink(source, destDir)) {
+            try {
+                Files.deleteIfExists(dest.toPath());
+                Files.createLink(dest.toPath(), source.toPath());
+                statHardLinked.incrementAndGet();
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                appendDebugMessage("Could not link " + dest.getName() + ", cloning or copying instead: " + e.getMessage());
+            }
+        }
+        // Starting cp costs more than copying a small file, and a clone that exiftool then rewrites saves nothing,
+        // so AUTO only clones large files that get a sidecar
+        boolean clone = strategy == OutputStrategy.CLONE
+                || (strategy != OutputStrategy.COPY && contentUnchanged && source.length() >= CLONE_MINIMUM_SIZE);
+        if (clone && fileSystems.canClone(source, destDir)) {
+            try {
+                FileSystemCapabilities.cloneFile(source, dest);
+                copyFileTimestamps(source, dest);
+                statCloned.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                appendDebugMessage("Could not clone " + dest.getName() + ", copying instead: " + e.getMessage());
+            }
+        }
+        copyFileWithMetadata(source, dest);
+    }
+
+    /**
+     * @return Whether a copy was made by hard linking it to its source, in which case it is the source
+     */
+    private boolean isLinkedToSource(PendingExifWrite write) {
+        if (this.mainOptions.getOutputStrategy() != OutputStrategy.HARDLINK || zipExport != null || write.file.equals(write.sourceFile)) {
+            return false;
+        }
+        try {
+            return Files.isSameFile(write.file.toPath(), write.sourceFile.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a file straight out of the ZIP files, keeping the modified time it has there
+     * @param source The file within the export
+     * @param dest The destination file
+     * @throws IOException if the file is not in the ZIP files, or can not be written
+     */
+    private void extractFile(File source, File dest) throws IOException {
+        try (InputStream input = zipExport.open(source)) {
+            Files.copy(input, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dest.setLastModified(zipExport.lastModified(source));
+    }
+
+    /**
+     * Copies a file while preserving its metadata (creation time, modification time, etc.)
+     * @param source The source file
+     * @param dest The destination file
+     * @throws IOException if the copy operation fails
+     */
+    private void copyFileWithMetadata(File source, File dest) throws IOException {
+        // Use Java NIO for efficient file copying
+        Files.copy(
+            source.toPath(), 
+            dest.toPath(), 
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES
+        );
+        copyFileTimestamps(source, dest);
+    }
+
+    /**
+     * Sets the times of a file to match another
+     * @param source The file to take the times from
+     * @param dest The file to set the times on
+     */
+    private void copyFileTimestamps(File source, File dest) {
+        try {
+            Files.setAttribute(dest.toPath(), "basic:creationTime", 
+                Files.getAttribute(source.toPath(), "basic:creationTime"));
+            Files.setAttribute(dest.toPath(), "basic:lastModifiedTime", 
+                Files.getAttribute(source.toPath(), "basic:lastModifiedTime"));
+            Files.setAttribute(dest.toPath(), "basic:lastAccessTime", 
+                Files.getAttribute(source.toPath(), "basic:lastAccessTime"));
+        } catch (Exception e) {
+            // If we can't preserve all attributes, at least try to preserve the last modified time
+            try {
+                dest.setLastModified(source.lastModified());
+            } catch (Exception ex) {
+                appendDebugMessage("Warning: Could not preserve file timestamps for " + dest.getName());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.util.List;
+
+/**
+ * Receives the output of a ProcessingEngine, so that the engine does not depend on any particular UI
+ */
+interface ProcessingListener {
+
+    /**
+     * A line of output for the user, called from the task and worker threads
+     */
+    void onMessage(String message);
+
+    /**
+     * Several lines of output for the user at once, called from the message log thread
+     */
+    default void onMessages(List<String> messages) {
+        for (String message : messages) {
+            onMessage(message);
+        }
+    }
+
+}
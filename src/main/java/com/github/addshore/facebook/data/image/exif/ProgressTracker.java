@@ -0,0 +1,167 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the progress of a run, for showing rates and an ETA while it is going.
+ *
+ * The counters are only ever added to from the task and worker threads, and read whenever the display is refreshed,
+ * so nothing is pushed to the display as files complete.
+ */
+class ProgressTracker {
+
+    /**
+     * The counters for one kind of work, such as tagging or copying
+     */
+    static class Stage {
+        private final String name;
+        private final AtomicInteger expected = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param files The number of files the stage is expected to get through, when known before they are queued
+         */
+        void expect(int files) {
+            expected.set(files);
+        }
+
+        /**
+         * @return The expected number of files, or the number queued so far if more than that
+         */
+        private int getTotal() {
+            return Math.max(expected.get(), queued.get());
+        }
+
+        void queued(int files) {
+            queued.addAndGet(files);
+        }
+
+        /**
+         * @param result Whether the file that was worked on succeeded
+         */
+        void finished(boolean result) {
+            (result ? done : failed).incrementAndGet();
+        }
+
+        /**
+         * @param results The result of each file that was worked on, true if it succeeded
+         */
+        void finished(List<Boolean> results) {
+            for (Boolean result : results) {
+                if (result != null && result) {
+                    done.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * @param name The name shown for the stage
+     * @return A new stage, shown in the order they are added
+     */
+    synchronized Stage addStage(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        return stage;
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * @return The number of files finished (including failures) across all stages
+     */
+    synchronized long getFinished() {
+        long finished = 0;
+        for (Stage stage : stages) {
+            finished += stage.done.get() + stage.failed.get();
+        }
+        return finished;
+    }
+
+    /**
+     * @return The number of files to get through across all stages, as planned or as queued so far
+     */
+    synchronized long getTotal() {
+        long total = 0;
+        for (Stage stage : stages) {
+            total += stage.getTotal();
+        }
+        return total;
+    }
+
+    /**
+     * @return A few lines describing the progress so far
+     */
+    synchronized String describe() {
+        double seconds = Math.max(0.001, (System.nanoTime() - startNanos) / 1e9);
+        long finished = getFinished();
+        long total = getTotal();
+        double filesPerSecond = finished / seconds;
+
+        StringBuilder description = new StringBuilder();
+        description.append("Files: ").append(finished).append(" of ").append(total);
+        description.append(String.format(Locale.ROOT, "   %.1f files/s   %s/s", filesPerSecond, formatBytes((long) (bytesWritten.get() / seconds))));
+        if (finished > 0 && total > finished) {
+            description.append("   ETA ").append(formatDuration((long) ((total - finished) / filesPerSecond)));
+        }
+        description.append("   Elapsed ").append(formatDuration((long) seconds));
+
+        description.append("\n");
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            if (i > 0) {
+                description.append("   ");
+            }
+            description.append(stage.name).append(": ").append(stage.done.get()).append("/").append(stage.getTotal());
+            if (stage.failed.get() > 0) {
+                description.append(" (").append(stage.failed.get()).append(" failed)");
+            }
+        }
+        return description.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.ROOT, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    static String formatDuration(long seconds) {
+        long hours = TimeUnit.SECONDS.toHours(seconds);
+        long minutes = TimeUnit.SECONDS.toMinutes(seconds) % 60;
+        if (hours > 0) {
+            return hours + "h " + minutes + "m";
+        }
+        if (minutes > 0) {
+            return minutes + "m " + (seconds % 60) + "s";
+        }
+        return seconds + "s";
+    }
+
+}
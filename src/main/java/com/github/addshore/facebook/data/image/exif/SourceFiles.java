@@ -0,0 +1,50 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Where the media files of an export are read from.
+ * Media is looked up by the file it would be in once extracted, which is where it is when the export is on disk.
+ */
+interface SourceFiles {
+
+    /**
+     * The export extracted to disk
+     */
+    SourceFiles DISK = new SourceFiles() {
+        @Override
+        public long size(File file) {
+            return file.isFile() ? file.length() : -1;
+        }
+
+        @Override
+        public long lastModified(File file) {
+            return file.lastModified();
+        }
+
+        @Override
+        public InputStream open(File file) throws IOException {
+            return Files.newInputStream(file.toPath());
+        }
+    };
+
+    /**
+     * @return The size of the file in bytes, or -1 if it is not in the export
+     */
+    long size(File file);
+
+    /**
+     * @return When the file was last modified, in milliseconds since the epoch
+     */
+    long lastModified(File file);
+
+    /**
+     * @return The content of the file
+     * @throws IOException if it is not in the export, or can not be read
+     */
+    InputStream open(File file) throws IOException;
+
+}
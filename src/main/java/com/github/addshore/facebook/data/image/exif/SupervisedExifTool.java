@@ -0,0 +1,411 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Writes files one at a time with stay open exiftool processes that it looks after itself, so that one file can not hold up the run.
+ *
+ * Each call has a deadline, after which its exiftool process is killed. A process that was killed, or that stopped on its own,
+ * is replaced by a new one and the file is tried again, after a growing pause. A file that still can not be written is quarantined,
+ * and listed at the end of the run. Files that exiftool reports an error for are not tried again, as they would fail the same way.
+ *
+ * A batch of files is sent to one exiftool, each file with its own numbered -execute and its own deadline,
+ * sending the next file before waiting on the one before it so that exiftool does not sit idle between files.
+ */
+class SupervisedExifTool implements Closeable {
+
+    static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MILLIS = 500;
+    private static final long CANCEL_CHECK_MILLIS = 250;
+    private static final Pattern WRITTEN = Pattern.compile("\\b[1-9]\\d* (image |output )?files (updated|created|unchanged)");
+
+    /**
+     * A file that could not be written, and why
+     */
+    static class Quarantined {
+        final File file;
+        final String reason;
+
+        Quarantined(File file, String reason) {
+            this.file = file;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * A single exiftool started with -stay_open, reading its arguments from stdin
+     */
+    private class StayOpenProcess {
+        final Process process;
+        final BufferedWriter input;
+        final BufferedReader output;
+        volatile boolean timedOut = false;
+        // The number of the last command sent, and of the last one whose output was read
+        int sent = 0;
+        int received = 0;
+
+        StayOpenProcess() throws IOException {
+            // stderr is merged into stdout, so that errors for a file arrive before its {ready}
+            process = new ProcessBuilder(exifToolPath.getPath(), "-stay_open", "True", "-@", "-")
+                    .redirectErrorStream(true)
+                    .start();
+            input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends the arguments for a file, numbering its -execute so that its {ready} line can be told apart from the others
+         */
+        void send(List<String> args) throws IOException {
+            sent++;
+            for (String arg : args) {
+                input.write(arg);
+                input.write('\n');
+            }
+            input.write("-execute" + sent + "\n");
+            input.flush();
+        }
+
+        /**
+         * Sends the arguments for a file, if there are any, then waits for what exiftool printed for the oldest file not yet read
+         * @param args The arguments for a file, which is the one waited for unless earlier files were sent before it, or null
+         * @return What exiftool printed, or null if the process was killed or stopped before it finished
+         */
+        String execute(List<String> args) {
+            ScheduledFuture<?> deadline = watchdog.schedule(() -> {
+                timedOut = true;
+                kill();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                if (args != null) {
+                    send(args);
+                }
+                String ready = "{ready" + (received + 1) + "}";
+                StringBuilder printed = new StringBuilder();
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.equals(ready)) {
+                        received++;
+                        return printed.toString();
+                    }
+                    printed.append(line).append('\n');
+                }
+                return null;
+            } catch (IOException e) {
+                // A closed pipe, as the process has gone
+                return null;
+            } finally {
+                deadline.cancel(false);
+            }
+        }
+
+        void kill() {
+            process.destroyForcibly();
+        }
+
+        /**
+         * Asks exiftool to exit, killing it if it does not
+         */
+        void stop() {
+            try {
+                input.write("-stay_open\nFalse\n");
+                input.flush();
+                input.close();
+                if (process.waitFor(2, TimeUnit.SECONDS)) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Already gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            process.destroyForcibly();
+        }
+    }
+
+    private final File exifToolPath;
+    private final long timeoutMillis;
+    private final Consumer<String> log;
+    private final ScheduledExecutorService watchdog;
+    private final Queue<StayOpenProcess> idle = new ConcurrentLinkedQueue<>();
+    private final Set<StayOpenProcess> running = ConcurrentHashMap.newKeySet();
+    private final List<Quarantined> quarantined = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger restarts = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * @param exifToolPath The exiftool executable
+     * @param timeoutMillis How long exiftool is given for each file before it is killed
+     * @param cancelled Checked by the watchdog, returning true kills every exiftool that is part way through a file
+     * @param log Told about each restart and quarantined file
+     */
+    SupervisedExifTool(File exifToolPath, long timeoutMillis, BooleanSupplier cancelled, Consumer<String> log) {
+        this.exifToolPath = exifToolPath;
+        this.timeoutMillis = timeoutMillis;
+        this.log = log;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "exiftool-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A worker waiting on exiftool does not check for a cancel itself
+        this.watchdog.scheduleWithFixedDelay(() -> {
+            if (cancelled.getAsBoolean()) {
+                abort();
+            }
+        }, CANCEL_CHECK_MILLIS, CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the tags of a single file, trying again with a new exiftool if it times out or stops
+     * @param write The file and the tags to write to it
+     * @return null if the file was written, otherwise why it was not
+     */
+    String write(PendingExifWrite write) throws InterruptedException {
+        List<String> args = argsFor(write);
+        String reason = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (closed) {
+                return "exiftool was stopped";
+            }
+            StayOpenProcess process;
+            try {
+                process = take();
+            } catch (IOException e) {
+                reason = "exiftool could not be started: " + e.getMessage();
+                continue;
+            }
+            running.add(process);
+            String printed = process.execute(args);
+            running.remove(process);
+            if (printed != null) {
+                idle.add(process);
+                return errorIn(printed);
+            }
+
+            process.kill();
+            if (closed) {
+                return "exiftool was stopped";
+            }
+            restarts.incrementAndGet();
+            reason = process.timedOut
+                    ? "exiftool did not finish within " + (timeoutMillis / 1000) + " seconds"
+                    : "exiftool stopped with exit code " + exitCode(process);
+            cleanUp(write);
+            if (attempt < MAX_ATTEMPTS) {
+                long backoff = BACKOFF_MILLIS << (attempt - 1);
+                log.accept("WARNING: " + reason + " for " + write.getExifToolInput().getPath() + ", trying again with a new exiftool in " + backoff + "ms");
+                Thread.sleep(backoff);
+            }
+        }
+        quarantined.add(new Quarantined(write.getExifToolInput(), reason));
+        log.accept("ERROR: Quarantined " + write.getExifToolInput().getPath() + " after " + MAX_ATTEMPTS + " attempts: " + reason);
+        return reason;
+    }
+
+    /**
+     * Writes the tags of a batch of files with one exiftool, each file with its own deadline as with write.
+     * If exiftool times out or stops part way, the files it finished keep their results and the rest are written one at a time
+     * with write, so the file that held it up is tried again and quarantined if it keeps failing.
+     * @param writes The files and the tags to write to them
+     * @return For each write in the same order, null if the file was written, otherwise why it was not
+     */
+    List<String> writeBatch(List<PendingExifWrite> writes) throws InterruptedException {
+        List<String> results = new ArrayList<>(writes.size());
+        if (writes.isEmpty() || closed) {
+            return writeEach(writes, results);
+        }
+        StayOpenProcess process;
+        try {
+            process = take();
+        } catch (IOException e) {
+            // write starts a new exiftool for each attempt, reporting it if that keeps failing
+            return writeEach(writes, results);
+        }
+
+        running.add(process);
+        String printed = null;
+        try {
+            // The first file is sent on its own, after that each file is sent while the one before it is being written
+            process.send(argsFor(writes.get(0)));
+            for (int i = 0; i < writes.size(); i++) {
+                printed = process.execute(i + 1 < writes.size() ? argsFor(writes.get(i + 1)) : null);
+                if (printed == null) {
+                    break;
+                }
+                results.add(errorIn(printed));
+            }
+        } catch (IOException e) {
+            // A closed pipe, as the process has gone
+            printed = null;
+        }
+        running.remove(process);
+        if (printed != null) {
+            idle.add(process);
+            return results;
+        }
+
+        process.kill();
+        if (closed) {
+            while (results.size() < writes.size()) {
+                results.add("exiftool was stopped");
+            }
+            return results;
+        }
+        restarts.incrementAndGet();
+        PendingExifWrite stuck = writes.get(results.size());
+        String reason = process.timedOut
+                ? "exiftool did not finish within " + (timeoutMillis / 1000) + " seconds"
+                : "exiftool stopped with exit code " + exitCode(process);
+        // The file after the stuck one may have been started too
+        for (PendingExifWrite write : writes.subList(results.size(), writes.size())) {
+            cleanUp(write);
+        }
+        log.accept("WARNING: " + reason + " for " + stuck.getExifToolInput().getPath() + ", writing the rest of the batch one file at a time");
+        return writeEach(writes, results);
+    }
+
+    /**
+     * Writes the files that do not have a result yet one at a time, adding their results
+     */
+    private List<String> writeEach(List<PendingExifWrite> writes, List<String> results) throws InterruptedException {
+        while (results.size() < writes.size()) {
+            results.add(write(writes.get(results.size())));
+        }
+        return results;
+    }
+
+    /**
+     * @return An idle exiftool that is still running, or a new one
+     */
+    private StayOpenProcess take() throws IOException, InterruptedException {
+        StayOpenProcess process;
+        while ((process = idle.poll()) != null) {
+            if (process.process.isAlive()) {
+                return process;
+            }
+            restarts.incrementAndGet();
+            log.accept("WARNING: An idle exiftool stopped with exit code " + exitCode(process) + ", starting a new one");
+        }
+        return new StayOpenProcess();
+    }
+
+    /**
+     * @return The exit code of a process that has stopped, or was just killed
+     */
+    private static String exitCode(StayOpenProcess process) throws InterruptedException {
+        // Its output closes just before it exits
+        if (!process.process.waitFor(1, TimeUnit.SECONDS)) {
+            return "unknown";
+        }
+        return Integer.toString(process.process.exitValue());
+    }
+
+    /**
+     * @return The exiftool arguments for a single write, one per line as they are sent to exiftool
+     */
+    static List<String> argsFor(PendingExifWrite write) {
+        List<String> args = new ArrayList<>(write.getExifToolFormat().getArgs());
+        for (Map.Entry<Tag, String> tag : write.exifData.entrySet()) {
+            args.add("-" + tag.getKey().getName() + "=" + singleLine(tag.getValue()));
+        }
+        args.add(write.getExifToolInput().getAbsolutePath());
+        return args;
+    }
+
+    private static String singleLine(String value) {
+        return value.replace("\r", " ").replace("\n", " ");
+    }
+
+    /**
+     * @param printed What exiftool printed for a single file
+     * @return null if exiftool says the file was written without an error, otherwise what it printed
+     */
+    static String errorIn(String printed) {
+        if (WRITTEN.matcher(printed).find() && !printed.contains("Error")) {
+            return null;
+        }
+        return printed.trim();
+    }
+
+    /**
+     * Removes what a killed exiftool may have left half written, so that the next attempt starts clean
+     */
+    static void cleanUp(PendingExifWrite write) {
+        try {
+            Files.deleteIfExists(new File(write.file.getPath() + "_exiftool_tmp").toPath());
+            // exiftool will not write a copy over a file that is already there
+            if (write.copyFromSource) {
+                Files.deleteIfExists(write.file.toPath());
+            }
+        } catch (IOException e) {
+            // The next attempt reports anything that is still in the way
+        }
+    }
+
+    /**
+     * @return The files that could not be written, in the order they were given up on
+     */
+    List<Quarantined> getQuarantined() {
+        synchronized (quarantined) {
+            return new ArrayList<>(quarantined);
+        }
+    }
+
+    /**
+     * @return How many exiftool processes had to be replaced
+     */
+    int getRestartCount() {
+        return restarts.get();
+    }
+
+    /**
+     * Kills every exiftool that is part way through a file, and stops any more being started
+     */
+    private void abort() {
+        closed = true;
+        for (StayOpenProcess process : running) {
+            process.kill();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        StayOpenProcess process;
+        while ((process = idle.poll()) != null) {
+            process.stop();
+        }
+        for (StayOpenProcess busy : running) {
+            busy.kill();
+        }
+        watchdog.shutdownNow();
+    }
+
+}
@@ -0,0 +1,463 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The work found by scanning an export before anything is processed.
+ *
+ * Every album and conversation is read in parallel, resolving each media uri to its file and size,
+ * so the run knows its total workload up front. The plan decides the order albums and conversations
+ * are processed in, and is written out as a JSON lines manifest with one line per album or conversation,
+ * followed by one line per media item within it. Only counts and sizes are kept in memory, and the media of
+ * each album or conversation is streamed back from the manifest when it is processed, so each JSON file is only read once.
+ */
+class WorkPlan {
+
+    static final String MANIFEST_FILE_NAME = "plan.jsonl";
+
+    /**
+     * A media item found in an album or conversation
+     */
+    static class PlannedMedia {
+        final String kind;
+        final String uri;
+        final File file;
+        final long size;
+        final MediaItem item;
+
+        private PlannedMedia(MediaItem item, long size) {
+            this.kind = item.kind;
+            this.uri = item.uri;
+            this.file = item.file;
+            this.size = size;
+            this.item = item;
+        }
+
+        /**
+         * @return Whether the file for the uri exists in the export
+         */
+        boolean exists() {
+            return size >= 0;
+        }
+    }
+
+    /**
+     * An album, or a conversation, which is processed as a whole
+     */
+    static class Unit {
+        final boolean isAlbum;
+        final File source;
+        final File group;
+        final List<File> jsonFiles;
+        final List<String> errors = new ArrayList<>();
+
+        // Whether any of the JSON files had a media array ("photos" or "messages")
+        boolean foundArray;
+        int mediaCount;
+        int missingCount;
+        long bytes;
+        // Where the unit line is in the manifest, with its media on the lines after it
+        long manifestOffset = -1;
+
+        /**
+         * @param isAlbum Whether this is an album, rather than a conversation
+         * @param source The album JSON file, or the conversation directory
+         * @param group The directory the source was found in, such as the inbox
+         * @param jsonFiles The JSON files to read for the unit
+         */
+        private Unit(boolean isAlbum, File source, File group, List<File> jsonFiles) {
+            this.isAlbum = isAlbum;
+            this.source = source;
+            this.group = group;
+            this.jsonFiles = jsonFiles;
+        }
+
+        /**
+         * @return The number of media items whose file is in the export
+         */
+        int getExistingCount() {
+            return mediaCount - missingCount;
+        }
+    }
+
+    /**
+     * Streams the media of a single album or conversation back from the manifest
+     */
+    class UnitReader implements Closeable {
+        private final Unit unit;
+        private final BufferedReader reader;
+        private final String name;
+        private final JSONArray participants;
+        private int read = 0;
+
+        private UnitReader(Unit unit) throws IOException {
+            this.unit = unit;
+            FileChannel channel = FileChannel.open(manifestFile.toPath(), StandardOpenOption.READ);
+            channel.position(unit.manifestOffset);
+            this.reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            JSONObject unitLine = readLine();
+            this.name = unitLine.optString("name", null);
+            this.participants = unitLine.optJSONArray("participants");
+        }
+
+        private JSONObject readLine() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new EOFException("Unexpected end of the work manifest");
+            }
+            try {
+                return new JSONObject(line);
+            } catch (JSONException e) {
+                throw new IOException("Bad line in the work manifest: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @return The album name, or the conversation title, if the JSON has one
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return The participants of a conversation, if the JSON has them
+         */
+        JSONArray getParticipants() {
+            return participants;
+        }
+
+        /**
+         * @return The next media item of the unit, in the order it was found, or null once all have been read
+         */
+        PlannedMedia next() throws IOException {
+            if (read >= unit.mediaCount) {
+                return null;
+            }
+            read++;
+            JSONObject itemLine = readLine();
+            try {
+                return new PlannedMedia(MediaItem.fromJson(itemLine, postsDir), itemLine.getLong("size"));
+            } catch (JSONException | IllegalArgumentException e) {
+                throw new IOException("Bad media in the work manifest: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends the lines of each unit to the manifest as a block, as units are read in parallel.
+     * The media lines of a unit are written to a file of their own as they are read, then copied across once the unit is done.
+     */
+    private static class ManifestWriter implements Closeable {
+        private final Path directory;
+        private final FileChannel channel;
+        private long position = 0;
+
+        ManifestWriter(File manifestFile) throws IOException {
+            directory = manifestFile.getAbsoluteFile().getParentFile().toPath();
+            Files.createDirectories(directory);
+            channel = FileChannel.open(manifestFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * @return A new file next to the manifest, for the media lines of a unit
+         */
+        Path createUnitFile() throws IOException {
+            return Files.createTempFile(directory, "plan-", ".tmp");
+        }
+
+        /**
+         * @param unitLine The line for the unit
+         * @param mediaLines The file holding the media lines of the unit
+         * @return The position the unit line was written at
+         */
+        synchronized long append(String unitLine, Path mediaLines) throws IOException {
+            long start = position;
+            ByteBuffer buffer = ByteBuffer.wrap((unitLine + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            try (FileChannel media = FileChannel.open(mediaLines, StandardOpenOption.READ)) {
+                long size = media.size();
+                long copied = 0;
+                while (copied < size) {
+                    long transferred = channel.transferFrom(media, position, size - copied);
+                    if (transferred <= 0) {
+                        throw new EOFException("Could not copy the media lines into the work manifest");
+                    }
+                    copied += transferred;
+                    position += transferred;
+                }
+            }
+            return start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final File postsDir;
+    private final File manifestFile;
+    private final List<Unit> albums;
+    private final List<Unit> conversations;
+
+    private WorkPlan(File postsDir, File manifestFile, List<Unit> albums, List<Unit> conversations) {
+        this.postsDir = postsDir;
+        this.manifestFile = manifestFile;
+        this.albums = albums;
+        this.conversations = conversations;
+    }
+
+    /**
+     * Scans an export, reading all of its albums and conversations in parallel
+     * @param postsDir The posts directory of the export
+     * @param mainOptions Which parts of the export to include
+     * @param manifestFile The manifest to write, which the media is read back from when processing
+     */
+    static WorkPlan scan(File postsDir, MainOptions mainOptions, File manifestFile) throws IOException {
+        return scan(postsDir, mainOptions, SourceFiles.DISK, manifestFile);
+    }
+
+    /**
+     * Scans an export, reading all of its albums and conversations in parallel
+     * @param postsDir The posts directory of the export
+     * @param mainOptions Which parts of the export to include
+     * @param sourceFiles Where the media files are, for their sizes
+     * @param manifestFile The manifest to write, which the media is read back from when processing
+     */
+    static WorkPlan scan(File postsDir, MainOptions mainOptions, SourceFiles sourceFiles, File manifestFile) throws IOException {
+        List<Unit> albums = new ArrayList<>();
+        if (mainOptions.shouldProcessPosts()) {
+            File albumDir = new File(postsDir, "album");
+            for (File albumJsonFile : listSorted(albumDir, file -> file.isFile() && file.getName().endsWith(".json"))) {
+                albums.add(new Unit(true, albumJsonFile, albumDir, Collections.singletonList(albumJsonFile)));
+            }
+        }
+
+        List<Unit> conversations = new ArrayList<>();
+        if (mainOptions.shouldProcessMessages()) {
+            File messagesDir = new File(postsDir.getParentFile(), "messages");
+            for (String groupName : new String[]{"inbox", "e2ee_cutover"}) {
+                File groupDir = new File(messagesDir, groupName);
+                for (File conversationDir : listSorted(groupDir, File::isDirectory)) {
+                    List<File> jsonFiles = listSorted(conversationDir, file -> file.isFile() && file.getName().endsWith(".json"));
+                    conversations.add(new Unit(false, conversationDir, groupDir, jsonFiles));
+                }
+            }
+        }
+
+        List<Unit> all = new ArrayList<>(albums);
+        all.addAll(conversations);
+        try (ManifestWriter manifest = new ManifestWriter(manifestFile)) {
+            all.parallelStream().forEach(unit -> {
+                try {
+                    read(unit, postsDir, mainOptions.shouldProcessFiles(), sourceFiles, manifest);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return new WorkPlan(postsDir, manifestFile, albums, conversations);
+    }
+
+    private static List<File> listSorted(File dir, FileFilter filter) {
+        File[] files = dir.listFiles(filter);
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        return Arrays.stream(files).sorted(Comparator.comparing(File::getName)).collect(Collectors.toList());
+    }
+
+    /**
+     * Reads the media of a unit, along with its name, picking out the media that processing wants, and adds them to the manifest
+     */
+    private static void read(Unit unit, File postsDir, boolean includeFiles, SourceFiles sourceFiles, ManifestWriter manifest) throws IOException {
+        // The media lines go straight to a file of their own, so neither the JSON nor the lines of the unit are held in memory
+        Path mediaLines = manifest.createUnitFile();
+        try {
+            String name = null;
+            JSONArray participants = null;
+            try (BufferedWriter writer = Files.newBufferedWriter(mediaLines, StandardCharsets.UTF_8)) {
+                for (File jsonFile : unit.jsonFiles) {
+                    try (MediaJsonReader reader = unit.isAlbum ? MediaJsonReader.forAlbum(jsonFile) : MediaJsonReader.forMessages(jsonFile)) {
+                        MediaJsonReader.MediaEntry entry;
+                        while ((entry = reader.next()) != null) {
+                            if (entry.kind.equals("files") && (!includeFiles || !entry.data.has("creation_timestamp"))) {
+                                continue;
+                            }
+                            MediaItem item = MediaItem.from(entry.kind, entry.data, postsDir);
+                            if (item == null) {
+                                continue;
+                            }
+                            long size = sourceFiles.size(item.file);
+                            // Only the fields of the MediaItem are kept, rather than the whole JSON of the item
+                            JSONObject itemLine = item.toJson();
+                            itemLine.put("size", size);
+                            writeLine(writer, itemLine.toString());
+                            unit.mediaCount++;
+                            if (size < 0) {
+                                unit.missingCount++;
+                            } else {
+                                unit.bytes += size;
+                            }
+                        }
+                        if (!reader.hasFoundArray()) {
+                            continue;
+                        }
+                        unit.foundArray = true;
+                        if (name == null) {
+                            name = reader.getString(unit.isAlbum ? "name" : "title");
+                        }
+                        if (participants == null) {
+                            participants = reader.getJSONArray("participants");
+                        }
+                    } catch (UncheckedIOException e) {
+                        // Failing to write the plan is not a problem with the JSON file, and the plan can not be used without it
+                        throw e.getCause();
+                    } catch (Exception e) {
+                        unit.errors.add(jsonFile.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            JSONObject unitLine = new JSONObject();
+            unitLine.put("unit", unit.isAlbum ? "album" : "conversation");
+            unitLine.put("path", ProcessedIndex.keyFor(postsDir.getParentFile().getParentFile(), unit.source));
+            unitLine.put("media", unit.mediaCount);
+            unitLine.put("bytes", unit.bytes);
+            unitLine.putOpt("name", name);
+            unitLine.putOpt("participants", participants);
+            if (!unit.errors.isEmpty()) {
+                unitLine.put("errors", unit.errors);
+            }
+            unit.manifestOffset = manifest.append(unitLine.toString(), mediaLines);
+        } finally {
+            Files.deleteIfExists(mediaLines);
+        }
+    }
+
+    private static void writeLine(BufferedWriter writer, String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param postsDir The posts directory of the export
+     * @param uri A media uri from the export JSON
+     * @return The file the uri refers to
+     */
+    static File resolveUri(File postsDir, String uri) {
+        return new File(postsDir.getParentFile().toPath() + File.separator + uri.replace("your_facebook_activity/", ""));
+    }
+
+    /**
+     * Opens the media of a unit from the manifest
+     * @param unit An album or conversation of this plan
+     */
+    UnitReader read(Unit unit) throws IOException {
+        return new UnitReader(unit);
+    }
+
+    List<Unit> getAlbums() {
+        return albums;
+    }
+
+    /**
+     * @param group The directory the conversations were found in, such as the inbox
+     * @return The conversations in that directory, in the order they should be processed
+     */
+    List<Unit> getConversations(File group) {
+        List<Unit> inGroup = new ArrayList<>();
+        for (Unit conversation : conversations) {
+            if (conversation.group.equals(group)) {
+                inGroup.add(conversation);
+            }
+        }
+        return inGroup;
+    }
+
+    int getUnitCount() {
+        return albums.size() + conversations.size();
+    }
+
+    /**
+     * @return The number of media items across the whole plan
+     */
+    int getMediaCount() {
+        int count = 0;
+        for (Unit unit : getUnits()) {
+            count += unit.mediaCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of media items whose file could not be found
+     */
+    int getMissingCount() {
+        int count = 0;
+        for (Unit unit : getUnits()) {
+            count += unit.missingCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return The total size of the media files across the whole plan
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Unit unit : getUnits()) {
+            bytes += unit.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The albums followed by the conversations
+     */
+    List<Unit> getUnits() {
+        List<Unit> units = new ArrayList<>(albums);
+        units.addAll(conversations);
+        return units;
+    }
+
+}
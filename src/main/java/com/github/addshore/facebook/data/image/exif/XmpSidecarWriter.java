@@ -0,0 +1,148 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Writes tags to an XMP sidecar file next to the media, leaving the media file itself untouched.
+ * Used for videos and other large files, where having exiftool rewrite the whole file costs far more than the tags are worth.
+ *
+ * The sidecar is named after the whole media file name, such as video.mp4.xmp, so media with the same base name do not clash.
+ */
+class XmpSidecarWriter {
+
+    private static final Pattern DATE = Pattern.compile("(\\d{4}):(\\d{2}):(\\d{2}) (\\d{2}:\\d{2}:\\d{2})");
+
+    /**
+     * @return The sidecar file for a media file
+     */
+    static File sidecarFor(File media) {
+        return new File(media.getPath() + ".xmp");
+    }
+
+    /**
+     * Writes (or replaces) the sidecar for a media file
+     * @param media The media file the tags are for
+     * @param exifData The tags, as they would be given to exiftool with -n
+     */
+    static void write(File media, Map<Tag, String> exifData) throws IOException {
+        // Properties sorted by name, so the same tags always give the same file
+        Map<String, String> properties = new TreeMap<>();
+        for (Map.Entry<Tag, String> tag : exifData.entrySet()) {
+            String value = tag.getValue();
+            switch (tag.getKey().getName()) {
+                case "ModifyDate":
+                    properties.put("xmp:ModifyDate", escape(date(value)));
+                    break;
+                case "DateTimeOriginal":
+                    properties.put("exif:DateTimeOriginal", escape(date(value)));
+                    break;
+                case "Make":
+                    properties.put("tiff:Make", escape(value));
+                    break;
+                case "Model":
+                    properties.put("tiff:Model", escape(value));
+                    break;
+                case "GPSLatitude":
+                    properties.put("exif:GPSLatitude", escape(coordinate(value, 'N', 'S')));
+                    break;
+                case "GPSLongitude":
+                    properties.put("exif:GPSLongitude", escape(coordinate(value, 'E', 'W')));
+                    break;
+                case "GPSAltitude":
+                    properties.put("exif:GPSAltitude", escape(rational(value)));
+                    break;
+                case "GPSAltitudeRef":
+                    properties.put("exif:GPSAltitudeRef", escape(value));
+                    break;
+                case "ExposureTime":
+                    properties.put("exif:ExposureTime", escape(rational(value)));
+                    break;
+                case "FNumber":
+                    properties.put("exif:FNumber", escape(rational(value)));
+                    break;
+                case "FocalLength":
+                    properties.put("exif:FocalLength", escape(rational(value)));
+                    break;
+                case "ISO":
+                    properties.put("exif:ISOSpeedRatings", "<rdf:Seq><rdf:li>" + escape(value) + "</rdf:li></rdf:Seq>");
+                    break;
+                default:
+                    // The latitude and longitude refs are part of the XMP coordinates
+            }
+        }
+
+        StringBuilder xmp = new StringBuilder();
+        xmp.append("<?xpacket begin='\uFEFF' id='W5M0MpCehiHzreSzNTczkc9d'?>\n");
+        xmp.append("<x:xmpmeta xmlns:x='adobe:ns:meta/'>\n");
+        xmp.append(" <rdf:RDF xmlns:rdf='http://www.w3.org/1999/02/22-rdf-syntax-ns#'>\n");
+        xmp.append("  <rdf:Description rdf:about=''\n");
+        xmp.append("    xmlns:exif='http://ns.adobe.com/exif/1.0/'\n");
+        xmp.append("    xmlns:tiff='http://ns.adobe.com/tiff/1.0/'\n");
+        xmp.append("    xmlns:xmp='http://ns.adobe.com/xap/1.0/'>\n");
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            xmp.append("   <").append(property.getKey()).append(">")
+                    .append(property.getValue())
+                    .append("</").append(property.getKey()).append(">\n");
+        }
+        xmp.append("  </rdf:Description>\n");
+        xmp.append(" </rdf:RDF>\n");
+        xmp.append("</x:xmpmeta>\n");
+        xmp.append("<?xpacket end='w'?>\n");
+
+        Files.write(sidecarFor(media).toPath(), xmp.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * @return An EXIF date (2017:07:14 02:40:00) as an XMP date (2017-07-14T02:40:00)
+     */
+    private static String date(String value) {
+        return DATE.matcher(value).replaceFirst("$1-$2-$3T$4");
+    }
+
+    /**
+     * @return Decimal degrees as an XMP GPS coordinate, degrees and decimal minutes followed by the direction
+     */
+    private static String coordinate(String value, char positive, char negative) {
+        try {
+            double degrees = Double.parseDouble(value);
+            double absolute = Math.abs(degrees);
+            int whole = (int) absolute;
+            double minutes = (absolute - whole) * 60;
+            return whole + "," + String.format(java.util.Locale.ROOT, "%.6f", minutes) + (degrees < 0 ? negative : positive);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    /**
+     * @return A fraction (1/30) as it is, or a decimal (2.8) as a fraction (28/10)
+     */
+    private static String rational(String value) {
+        if (value.contains("/")) {
+            return value.trim();
+        }
+        try {
+            BigDecimal decimal = new BigDecimal(value.trim()).stripTrailingZeros();
+            if (decimal.scale() <= 0) {
+                return decimal.toBigInteger() + "/1";
+            }
+            return decimal.unscaledValue() + "/" + BigDecimal.ONE.movePointRight(decimal.scale()).toBigInteger();
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+}
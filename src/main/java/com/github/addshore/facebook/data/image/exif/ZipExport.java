@@ -0,0 +1,166 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An export that is still in the ZIP files facebook delivers it as, which may be split over several parts.
+ *
+ * Only the album and message JSON is extracted, into the export root, so that the export can be scanned as normal.
+ * Media is read straight out of the ZIP files, found through their central directories, when it is copied to the
+ * Processed folder, so it is never extracted anywhere else first.
+ */
+class ZipExport implements SourceFiles, Closeable {
+
+    private static final String EXPORT_DIRECTORY = "your_facebook_activity/";
+    private static final String ALBUM_DIRECTORY = EXPORT_DIRECTORY + "posts/album/";
+    private static final String MESSAGES_DIRECTORY = EXPORT_DIRECTORY + "messages/";
+
+    /**
+     * An entry, and the ZIP file it is in
+     */
+    private static class Located {
+        final ZipFile zip;
+        final ZipEntry entry;
+
+        Located(ZipFile zip, ZipEntry entry) {
+            this.zip = zip;
+            this.entry = entry;
+        }
+    }
+
+    private final Path exportRoot;
+    private final List<ZipFile> zips = new ArrayList<>();
+    private final Map<String, Located> entries = new HashMap<>();
+
+    private ZipExport(File exportRoot) {
+        this.exportRoot = exportRoot.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * Opens the ZIP files of an export, reading only their central directories
+     * @param zipFiles The ZIP files, in any order
+     * @param exportRoot The directory the export is treated as being extracted to
+     * @throws IOException if any of them can not be opened
+     */
+    static ZipExport open(List<File> zipFiles, File exportRoot) throws IOException {
+        ZipExport export = new ZipExport(exportRoot);
+        try {
+            for (File zipFile : zipFiles) {
+                ZipFile zip = new ZipFile(zipFile);
+                export.zips.add(zip);
+                zip.stream().filter(entry -> !entry.isDirectory()).forEach(entry -> {
+                    // Entries are normally at the top of the ZIP file, but may be within another folder
+                    int start = entry.getName().indexOf(EXPORT_DIRECTORY);
+                    if (start >= 0) {
+                        export.entries.put(entry.getName().substring(start), new Located(zip, entry));
+                    }
+                });
+            }
+        } catch (IOException e) {
+            export.close();
+            throw e;
+        }
+        return export;
+    }
+
+    /**
+     * @return The number of files in the export across all of the ZIP files
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Extracts the album and message JSON into the export root, leaving any that is already there from a previous run
+     * @return The number of JSON files that were extracted
+     */
+    int extractJson() throws IOException {
+        int extracted = 0;
+        for (Map.Entry<String, Located> entry : entries.entrySet()) {
+            String name = entry.getKey();
+            if (!name.endsWith(".json")) {
+                continue;
+            }
+            // Names such as messages/../../x.json would otherwise be written outside of the export
+            Path targetPath = exportRoot.resolve(name).normalize();
+            if (!targetPath.startsWith(exportRoot.resolve(ALBUM_DIRECTORY)) && !targetPath.startsWith(exportRoot.resolve(MESSAGES_DIRECTORY))) {
+                continue;
+            }
+            File target = targetPath.toFile();
+            ZipEntry zipEntry = entry.getValue().entry;
+            if (target.isFile() && target.length() == zipEntry.getSize() && target.lastModified() == zipEntry.getTime()) {
+                continue;
+            }
+            Files.createDirectories(target.getParentFile().toPath());
+            try (InputStream input = entry.getValue().zip.getInputStream(zipEntry)) {
+                Files.copy(input, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (zipEntry.getTime() != -1) {
+                target.setLastModified(zipEntry.getTime());
+            }
+            extracted++;
+        }
+        return extracted;
+    }
+
+    /**
+     * @return The entry for a file within the export root, or null if there is none
+     */
+    private Located find(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(exportRoot)) {
+            return null;
+        }
+        return entries.get(exportRoot.relativize(path).toString().replace(File.separatorChar, '/'));
+    }
+
+    @Override
+    public long size(File file) {
+        Located located = find(file);
+        return located == null ? -1 : located.entry.getSize();
+    }
+
+    @Override
+    public long lastModified(File file) {
+        Located located = find(file);
+        return located == null ? 0 : Math.max(0, located.entry.getTime());
+    }
+
+    @Override
+    public InputStream open(File file) throws IOException {
+        Located located = find(file);
+        if (located == null) {
+            throw new FileNotFoundException(file.getPath() + " is not in the ZIP files");
+        }
+        return located.zip.getInputStream(located.entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ZipFile zip : zips) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.lang.GeoLocation;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+import com.thebuzzmedia.exiftool.Tag;
+import com.thebuzzmedia.exiftool.core.StandardTag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JpegExifWriterTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void writesEveryTagIntoAJpegWithoutExif() throws Exception {
+        File input = jpeg(null);
+        File output = new File(tempDir, "output.jpg");
+
+        Map<Tag, String> exifData = allTags();
+        assertTrue(JpegExifWriter.canWrite(output, exifData));
+        assertTrue(JpegExifWriter.write(input, output, exifData, false));
+
+        Metadata metadata = JpegMetadataReader.readMetadata(output);
+        ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        assertEquals("Canon", ifd0.getString(ExifIFD0Directory.TAG_MAKE));
+        assertEquals("EOS 5D", ifd0.getString(ExifIFD0Directory.TAG_MODEL));
+        assertEquals("2020:01:02 03:04:05", ifd0.getString(ExifIFD0Directory.TAG_DATETIME));
+
+        ExifSubIFDDirectory exif = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        assertEquals("2019:12:31 23:59:58", exif.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL));
+        assertEquals(1.0 / 60, exif.getRational(ExifSubIFDDirectory.TAG_EXPOSURE_TIME).doubleValue(), 1e-9);
+        assertEquals(2.8, exif.getRational(ExifSubIFDDirectory.TAG_FNUMBER).doubleValue(), 1e-9);
+        assertEquals(35, exif.getRational(ExifSubIFDDirectory.TAG_FOCAL_LENGTH).doubleValue(), 1e-9);
+        assertEquals(400, exif.getInt(ExifSubIFDDirectory.TAG_ISO_EQUIVALENT));
+
+        GpsDirectory gps = metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        assertEquals("S", gps.getString(GpsDirectory.TAG_LATITUDE_REF));
+        assertEquals("E", gps.getString(GpsDirectory.TAG_LONGITUDE_REF));
+        GeoLocation location = gps.getGeoLocation();
+        assertEquals(-33.856784, location.getLatitude(), 1e-6);
+        assertEquals(151.215297, location.getLongitude(), 1e-6);
+        assertEquals(0, gps.getRational(GpsDirectory.TAG_ALTITUDE).doubleValue(), 1e-9);
+
+        assertImageDataUnchanged(input, output);
+    }
+
+    @Test
+    void mergesIntoExistingLittleEndianExif() throws Exception {
+        assertMergesIntoExistingExif(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    void mergesIntoExistingBigEndianExif() throws Exception {
+        assertMergesIntoExistingExif(ByteOrder.BIG_ENDIAN);
+    }
+
+    private void assertMergesIntoExistingExif(ByteOrder order) throws Exception {
+        File input = jpeg(exifSegment(order, 0x0112));
+        File output = new File(tempDir, "output.jpg");
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Nikon");
+        exifData.put(StandardTag.DATE_TIME_ORIGINAL, "2021:06:07 08:09:10");
+        assertTrue(JpegExifWriter.write(input, output, exifData, false));
+
+        Metadata metadata = JpegMetadataReader.readMetadata(output);
+        ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        assertEquals("Nikon", ifd0.getString(ExifIFD0Directory.TAG_MAKE));
+        // Tags that were not set are kept
+        assertEquals(6, ifd0.getInt(ExifIFD0Directory.TAG_ORIENTATION));
+        ExifSubIFDDirectory exif = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        assertEquals("2021:06:07 08:09:10", exif.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL));
+        assertEquals(1, metadata.getDirectoriesOfType(ExifIFD0Directory.class).size());
+
+        assertImageDataUnchanged(input, output);
+    }
+
+    @Test
+    void declinesExifWithAMakerNote() throws Exception {
+        File input = jpeg(exifSegment(ByteOrder.BIG_ENDIAN, 0x927C));
+        File output = new File(tempDir, "output.jpg");
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Nikon");
+        assertFalse(JpegExifWriter.write(input, output, exifData, false));
+        assertFalse(output.exists());
+        assertFalse(new File(output.getPath() + "_exiftool_tmp").exists());
+    }
+
+    @Test
+    void declinesBadValues() throws Exception {
+        File input = jpeg(null);
+        File output = new File(tempDir, "output.jpg");
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.DATE_TIME_ORIGINAL, "yesterday");
+        assertFalse(JpegExifWriter.write(input, output, exifData, false));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    void keepsABackupWhenWritingInPlace() throws Exception {
+        File file = jpeg(null);
+        byte[] original = Files.readAllBytes(file.toPath());
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Canon");
+        assertTrue(JpegExifWriter.write(file, file, exifData, true));
+
+        assertArrayEquals(original, Files.readAllBytes(new File(file.getPath() + "_original").toPath()));
+        ExifIFD0Directory ifd0 = JpegMetadataReader.readMetadata(file).getFirstDirectoryOfType(ExifIFD0Directory.class);
+        assertEquals("Canon", ifd0.getString(ExifIFD0Directory.TAG_MAKE));
+    }
+
+    @Test
+    void patchesTagsThatAreAlreadyThere() throws Exception {
+        File file = new File(tempDir, "patched.jpg");
+        assertTrue(JpegExifWriter.write(jpeg(null), file, allTags(), false));
+        long size = file.length();
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(CustomTag.MODIFYDATE, "2022:02:03 04:05:06");
+        exifData.put(StandardTag.DATE_TIME_ORIGINAL, "2022:01:01 00:00:01");
+        exifData.put(StandardTag.MAKE, "Sony");
+        exifData.put(StandardTag.GPS_LATITUDE, "10.5");
+        exifData.put(StandardTag.GPS_LATITUDE_REF, "10.5");
+        assertTrue(JpegExifWriter.patchInPlace(file, exifData));
+        assertEquals(size, file.length());
+
+        Metadata metadata = JpegMetadataReader.readMetadata(file);
+        ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        assertEquals("2022:02:03 04:05:06", ifd0.getString(ExifIFD0Directory.TAG_DATETIME));
+        // Shorter strings are padded with nulls
+        assertEquals("Sony", ifd0.getString(ExifIFD0Directory.TAG_MAKE));
+        assertEquals("EOS 5D", ifd0.getString(ExifIFD0Directory.TAG_MODEL));
+        ExifSubIFDDirectory exif = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        assertEquals("2022:01:01 00:00:01", exif.getString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL));
+        GpsDirectory gps = metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        assertEquals("N", gps.getString(GpsDirectory.TAG_LATITUDE_REF));
+        assertEquals(10.5, gps.getGeoLocation().getLatitude(), 1e-6);
+    }
+
+    @Test
+    void doesNotPatchWhenATagIsMissingOrTooLong() throws Exception {
+        File file = new File(tempDir, "patched.jpg");
+        Map<Tag, String> written = new HashMap<>();
+        written.put(StandardTag.MAKE, "Canon");
+        written.put(CustomTag.MODIFYDATE, "2020:01:02 03:04:05");
+        assertTrue(JpegExifWriter.write(jpeg(null), file, written, false));
+        byte[] before = Files.readAllBytes(file.toPath());
+
+        Map<Tag, String> missing = new HashMap<>();
+        missing.put(CustomTag.MODIFYDATE, "2022:02:03 04:05:06");
+        missing.put(StandardTag.ISO, "100");
+        assertFalse(JpegExifWriter.patchInPlace(file, missing));
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+
+        Map<Tag, String> tooLong = new HashMap<>();
+        tooLong.put(StandardTag.MAKE, "Hasselblad");
+        assertFalse(JpegExifWriter.patchInPlace(file, tooLong));
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void doesNotPatchAJpegWithoutExif() throws Exception {
+        File file = jpeg(null);
+        byte[] before = Files.readAllBytes(file.toPath());
+
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Canon");
+        assertFalse(JpegExifWriter.patchInPlace(file, exifData));
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void onlyWritesJpegsAndKnownTags() {
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Canon");
+        assertTrue(JpegExifWriter.canWrite(new File("photo.JPEG"), exifData));
+        assertFalse(JpegExifWriter.canWrite(new File("video.mp4"), exifData));
+
+        exifData.put(StandardTag.ARTIST, "Someone");
+        assertFalse(JpegExifWriter.canWrite(new File("photo.jpg"), exifData));
+    }
+
+    private static Map<Tag, String> allTags() {
+        Map<Tag, String> exifData = new HashMap<>();
+        exifData.put(StandardTag.MAKE, "Canon");
+        exifData.put(StandardTag.MODEL, "EOS 5D");
+        exifData.put(CustomTag.MODIFYDATE, "2020:01:02 03:04:05");
+        exifData.put(StandardTag.DATE_TIME_ORIGINAL, "2019:12:31 23:59:58");
+        exifData.put(CustomTag.EXPOSURE, "1/60");
+        exifData.put(CustomTag.FNUMBER, "2.8");
+        exifData.put(StandardTag.ISO, "400");
+        exifData.put(StandardTag.FOCAL_LENGTH, "35");
+        exifData.put(StandardTag.GPS_LATITUDE, "-33.856784");
+        exifData.put(StandardTag.GPS_LATITUDE_REF, "-33.856784");
+        exifData.put(StandardTag.GPS_LONGITUDE, "151.215297");
+        exifData.put(StandardTag.GPS_LONGITUDE_REF, "151.215297");
+        exifData.put(StandardTag.GPS_ALTITUDE, "0");
+        exifData.put(StandardTag.GPS_ALTITUDE_REF, "0");
+        return exifData;
+    }
+
+    /**
+     * @param app1 An APP1 payload to add straight after the JFIF segment, or null for none
+     * @return A small JPEG written by ImageIO
+     */
+    private File jpeg(byte[] app1) throws IOException {
+        BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 16; x++) {
+            image.setRGB(x, x % 8, 0xFF8800);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", encoded));
+        byte[] bytes = encoded.toByteArray();
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        if (app1 == null) {
+            jpeg.write(bytes);
+        } else {
+            // SOI and the JFIF APP0 segment, then the new APP1, then the rest
+            int jfifEnd = 4 + (((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF));
+            jpeg.write(bytes, 0, jfifEnd);
+            jpeg.write(0xFF);
+            jpeg.write(0xE1);
+            jpeg.write((app1.length + 2) >> 8);
+            jpeg.write((app1.length + 2) & 0xFF);
+            jpeg.write(app1);
+            jpeg.write(bytes, jfifEnd, bytes.length - jfifEnd);
+        }
+        File file = File.createTempFile("input", ".jpg", tempDir);
+        Files.write(file.toPath(), jpeg.toByteArray());
+        return file;
+    }
+
+    /**
+     * @param extraTag A SHORT tag to add to IFD0 along with a Make of "Old", such as Orientation or a MakerNote
+     * @return An EXIF APP1 payload with just IFD0
+     */
+    private static byte[] exifSegment(ByteOrder order, int extraTag) {
+        byte[] make = "Old\0".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer tiff = ByteBuffer.allocate(6 + 8 + 2 + 2 * 12 + 4).order(order);
+        tiff.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? new byte[]{'I', 'I'} : new byte[]{'M', 'M'});
+        tiff.putShort((short) 42);
+        tiff.putInt(8);
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x010F).putShort((short) 2).putInt(make.length).put(make);
+        tiff.putShort((short) extraTag).putShort((short) 3).putInt(1).putShort((short) 6).putShort((short) 0);
+        tiff.putInt(0);
+        return tiff.array();
+    }
+
+    /**
+     * Checks that everything from the start of scan onwards was copied across byte for byte
+     */
+    private static void assertImageDataUnchanged(File input, File output) throws IOException {
+        byte[] in = Files.readAllBytes(input.toPath());
+        byte[] out = Files.readAllBytes(output.toPath());
+        int inScan = startOfScan(in);
+        int outScan = startOfScan(out);
+        assertEquals(in.length - inScan, out.length - outScan);
+        for (int i = 0; i < in.length - inScan; i++) {
+            assertEquals(in[inScan + i], out[outScan + i], "Image data differs at " + i);
+        }
+        BufferedImage image = ImageIO.read(output);
+        assertEquals(16, image.getWidth());
+        assertEquals(8, image.getHeight());
+    }
+
+    private static int startOfScan(byte[] jpeg) {
+        int position = 2;
+        while ((jpeg[position + 1] & 0xFF) != 0xDA) {
+            position += 2 + (((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF));
+        }
+        return position;
+    }
+}
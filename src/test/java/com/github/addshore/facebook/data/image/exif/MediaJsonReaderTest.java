@@ -0,0 +1,148 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.json.JSONException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MediaJsonReaderTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void readsAlbumPhotosWithFieldsBeforeAndAfter() throws Exception {
+        File json = json(
+                "{",
+                "  \"name\": \"Holiday \\\"2019\\\" \\u00e9t\\u00e9 } ]\",",
+                "  \"cover_photo\": {\"uri\": \"cover.jpg\", \"photos\": [{\"uri\": \"not-media.jpg\"}]},",
+                "  \"photos\": [",
+                "    {",
+                "      \"uri\": \"photos/one.jpg\",",
+                "      \"title\": \"line\\nbreak \\\\ slash \\/ {brace}\",",
+                "      \"media_metadata\": {\"photo_metadata\": {\"exif_data\": [{\"iso\": 100, \"nested\": [[1, 2], {\"deep\": [3]}]}]}}",
+                "    },",
+                "    {\"uri\": \"photos/two.jpg\", \"comments\": [{\"comment\": \"]}\", \"author\": \"Someone\"}]}",
+                "  ],",
+                "  \"description\": \"After the photos\",",
+                "  \"tags\": [\"a\", [\"b\"], {\"c\": null}]",
+                "}");
+
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json)) {
+            // Nothing is read until the first item is asked for
+            assertNull(reader.getString("name"));
+
+            MediaJsonReader.MediaEntry one = reader.next();
+            assertEquals("photos", one.kind);
+            assertEquals("photos/one.jpg", one.data.getString("uri"));
+            assertEquals("line\nbreak \\ slash / {brace}", one.data.getString("title"));
+            assertEquals(100, one.data.getJSONObject("media_metadata").getJSONObject("photo_metadata")
+                    .getJSONArray("exif_data").getJSONObject(0).getInt("iso"));
+            assertEquals("Holiday \"2019\" été } ]", reader.getString("name"));
+            assertTrue(reader.has("cover_photo"));
+            assertFalse(reader.has("description"));
+
+            MediaJsonReader.MediaEntry two = reader.next();
+            assertEquals("photos/two.jpg", two.data.getString("uri"));
+            assertEquals("]}", two.data.getJSONArray("comments").getJSONObject(0).getString("comment"));
+
+            assertNull(reader.next());
+            assertNull(reader.next());
+            assertTrue(reader.hasFoundArray());
+            assertEquals(2, reader.getArrayLength());
+            assertEquals("After the photos", reader.getString("description"));
+            assertEquals(3, reader.getJSONArray("tags").length());
+            // Not a string or array
+            assertNull(reader.getString("cover_photo"));
+            assertNull(reader.getJSONArray("cover_photo"));
+        }
+    }
+
+    @Test
+    void readsMediaFromMessagesWithFieldsBeforeAndAfter() throws Exception {
+        File json = json(
+                "{",
+                "  \"participants\": [{\"name\": \"Zo\\u00c3\\u00ab\"}, {\"name\": \"Sam\"}],",
+                "  \"messages\": [",
+                "    {\"sender_name\": \"Sam\", \"content\": \"No media, just \\\"quotes\\\" and [brackets]\"},",
+                "    {",
+                "      \"sender_name\": \"Sam\",",
+                "      \"photos\": [{\"uri\": \"p1.jpg\"}, {\"uri\": \"p2.jpg\"}],",
+                "      \"videos\": [{\"uri\": \"v1.mp4\", \"thumbnail\": {\"uri\": \"t1.jpg\"}}],",
+                "      \"reactions\": [{\"reaction\": \"\\u00f0\\u009f\\u0098\\u0086\", \"actor\": \"Zo\\u00c3\\u00ab\"}]",
+                "    },",
+                "    {\"share\": {\"link\": \"https://example.com\", \"photos\": [{\"uri\": \"nested.jpg\"}]}},",
+                "    null,",
+                "    {\"files\": [{\"uri\": \"f1.pdf\"}, \"not an object\"]}",
+                "  ],",
+                "  \"title\": \"Zo\\u00c3\\u00ab and Sam\",",
+                "  \"is_still_participant\": true",
+                "}");
+
+        try (MediaJsonReader reader = MediaJsonReader.forMessages(json)) {
+            assertEntry(reader.next(), "photos", "p1.jpg");
+            assertEquals(2, reader.getJSONArray("participants").length());
+            assertEquals("ZoÃ«", reader.getJSONArray("participants").getJSONObject(0).getString("name"));
+            assertFalse(reader.has("title"));
+            assertEntry(reader.next(), "photos", "p2.jpg");
+            assertEntry(reader.next(), "videos", "v1.mp4");
+            // Media nested deeper in a message, such as in a share, is not a media item
+            assertEntry(reader.next(), "files", "f1.pdf");
+            assertNull(reader.next());
+
+            assertEquals(5, reader.getArrayLength());
+            assertEquals("ZoÃ« and Sam", reader.getString("title"));
+            assertTrue(reader.has("is_still_participant"));
+        }
+    }
+
+    @Test
+    void handlesMissingAndEmptyArrays() throws Exception {
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json("{\"name\": \"No photos\"}"))) {
+            assertNull(reader.next());
+            assertFalse(reader.hasFoundArray());
+            assertEquals("No photos", reader.getString("name"));
+        }
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json("{\"photos\": [ ], \"name\": \"Empty\"}"))) {
+            assertNull(reader.next());
+            assertTrue(reader.hasFoundArray());
+            assertEquals(0, reader.getArrayLength());
+            assertEquals("Empty", reader.getString("name"));
+        }
+        try (MediaJsonReader reader = MediaJsonReader.forMessages(json("{ }"))) {
+            assertNull(reader.next());
+            assertFalse(reader.hasFoundArray());
+        }
+    }
+
+    @Test
+    void throwsOnBrokenJson() throws Exception {
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json("{\"photos\": [{\"uri\": \"one.jpg\"} {\"uri\": \"two.jpg\"}]}"))) {
+            assertThrows(JSONException.class, reader::next);
+        }
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json("[{\"uri\": \"one.jpg\"}]"))) {
+            assertThrows(JSONException.class, reader::next);
+        }
+        try (MediaJsonReader reader = MediaJsonReader.forAlbum(json("{\"name\": \"Cut off\", \"photos\": [{\"uri\": \"one"))) {
+            assertThrows(JSONException.class, reader::next);
+        }
+    }
+
+    private static void assertEntry(MediaJsonReader.MediaEntry entry, String kind, String uri) {
+        assertNotNull(entry);
+        assertEquals(kind, entry.kind);
+        assertEquals(uri, entry.data.getString("uri"));
+    }
+
+    private File json(String... lines) throws IOException {
+        File file = File.createTempFile("media", ".json", tempDir);
+        Files.write(file.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
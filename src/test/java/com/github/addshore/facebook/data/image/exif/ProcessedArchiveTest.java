@@ -0,0 +1,170 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessedArchiveTest {
+
+    private static final String LONG_NAME = "Messages/" + repeat("a very long conversation title ", 6) + "/photos/" + repeat("x", 120) + ".jpg";
+    private static final String NON_ASCII_NAME = "Messages/Zoë & Chloé 🎉/фото_1.jpg";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void tarKeepsLongAndNonAsciiNames() throws Exception {
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put("Albums/Short/photo.jpg", file("short", 1_600_000_000_123L));
+        files.put(LONG_NAME, file("long", 1_500_000_000_000L));
+        files.put(NON_ASCII_NAME, file("unicode", 1_400_000_000_999L));
+
+        File tar = new File(tempDir, "Processed.tar");
+        try (ProcessedArchive archive = ProcessedArchive.create(tar)) {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                assertTrue(archive.add(file.getKey(), file.getValue()));
+            }
+            assertEquals(3, archive.getFileCount());
+        }
+        assertEquals(0, tar.length() % 512);
+
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream input = new TarArchiveInputStream(Files.newInputStream(tar.toPath()))) {
+            TarArchiveEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                File original = files.get(entry.getName());
+                assertNotNull(original, "Unexpected entry " + entry.getName());
+                names.add(entry.getName());
+                BasicFileAttributes attributes = Files.readAttributes(original.toPath(), BasicFileAttributes.class);
+                assertEquals(attributes.size(), entry.getSize());
+                assertEquals(attributes.lastModifiedTime().toMillis(), entry.getLastModifiedTime().toMillis());
+                assertEquals(attributes.creationTime().toMillis(), entry.getCreationTime().toMillis());
+                assertArrayEquals(Files.readAllBytes(original.toPath()), IOUtils.toByteArray(input));
+            }
+        }
+        assertEquals(new ArrayList<>(files.keySet()), names);
+    }
+
+    @Test
+    void tarPaxRecordLengthsAreRightAroundExtraDigits() throws Exception {
+        // Record lengths around 100 need one more digit once the length itself is included
+        File file = file("data", 1_600_000_000_000L);
+        File tar = new File(tempDir, "Processed.tar");
+        List<String> expected = new ArrayList<>();
+        try (ProcessedArchive archive = ProcessedArchive.create(tar)) {
+            for (int length = 80; length < 110; length++) {
+                String name = repeat("n", length);
+                expected.add(name);
+                archive.add(name, file);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream input = new TarArchiveInputStream(Files.newInputStream(tar.toPath()))) {
+            TarArchiveEntry entry;
+            while ((entry = input.getNextEntry()) != null) {
+                names.add(entry.getName());
+                assertEquals("data", new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(expected, names);
+    }
+
+    @Test
+    void tarUsesPaxForSizesOverEightGigabytes() throws Exception {
+        long size = 9L * 1024 * 1024 * 1024 + 3;
+        FileTime modified = FileTime.fromMillis(1_600_000_000_500L);
+        FileTime created = FileTime.fromMillis(1_500_000_000_250L);
+
+        // Only the headers are written, as the data itself would be too large for a test
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ProcessedArchive.Tar(output).writeHeaders(NON_ASCII_NAME, size, modified, created);
+        byte[] headers = output.toByteArray();
+        assertEquals(0, headers.length % 512);
+
+        try (TarArchiveInputStream input = new TarArchiveInputStream(new ByteArrayInputStream(headers))) {
+            TarArchiveEntry entry = input.getNextEntry();
+            assertEquals(NON_ASCII_NAME, entry.getName());
+            assertEquals(size, entry.getSize());
+            assertEquals(modified.toMillis(), entry.getLastModifiedTime().toMillis());
+            assertEquals(created.toMillis(), entry.getCreationTime().toMillis());
+        }
+        String paxRecords = new String(headers, 512, 512, StandardCharsets.UTF_8);
+        assertTrue(paxRecords.contains(" size=" + size + "\n"));
+    }
+
+    @Test
+    void tarOnlyUsesPaxSizeWhenNeeded() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ProcessedArchive.Tar(output).writeHeaders("photo.jpg", 1234, FileTime.fromMillis(0), FileTime.fromMillis(0));
+        String paxRecords = new String(output.toByteArray(), 512, 512, StandardCharsets.UTF_8);
+        assertFalse(paxRecords.contains(" size="));
+    }
+
+    @Test
+    void zipKeepsNamesAndTimes() throws Exception {
+        File photo = file("photo", 1_600_000_000_000L);
+        File zip = new File(tempDir, "Processed.zip");
+        try (ProcessedArchive archive = ProcessedArchive.create(zip)) {
+            assertTrue(archive.add(NON_ASCII_NAME, photo));
+            assertTrue(archive.add(LONG_NAME, photo));
+        }
+
+        try (ZipFile zipFile = new ZipFile(zip, StandardCharsets.UTF_8)) {
+            for (String name : new String[]{NON_ASCII_NAME, LONG_NAME}) {
+                ZipEntry entry = zipFile.getEntry(name);
+                assertNotNull(entry, name);
+                assertEquals(1_600_000_000_000L, entry.getLastModifiedTime().toMillis());
+                try (InputStream input = zipFile.getInputStream(entry)) {
+                    assertEquals("photo", new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    @Test
+    void doesNotAddTheSameNameTwice() throws Exception {
+        File photo = file("photo", 1_600_000_000_000L);
+        try (ProcessedArchive archive = ProcessedArchive.create(new File(tempDir, "Processed.tar"))) {
+            assertTrue(archive.add("photo.jpg", photo));
+            assertFalse(archive.add("photo.jpg", photo));
+            assertEquals(1, archive.getFileCount());
+            assertEquals(5, archive.getByteCount());
+        }
+    }
+
+    private File file(String content, long modifiedMillis) throws IOException {
+        File file = File.createTempFile("media", ".jpg", tempDir);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(modifiedMillis));
+        return file;
+    }
+
+    private static String repeat(String string, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(string);
+        }
+        return repeated.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.addshore.facebook.data.image.exif;
+
+import com.thebuzzmedia.exiftool.Tag;
+import com.thebuzzmedia.exiftool.core.StandardTag;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs against a shell script that speaks the stay open protocol, hanging on any file with "stuck" in its name
+ * and reporting an error for any with "broken" in it.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class SupervisedExifToolTest {
+
+    private static final long TIMEOUT_MILLIS = 500;
+
+    @TempDir
+    File tempDir;
+
+    private File exifTool;
+    private File executed;
+
+    @BeforeEach
+    void installExifTool() throws IOException {
+        executed = new File(tempDir, "executed.txt");
+        exifTool = new File(tempDir, "exiftool");
+        String script = "#!/bin/sh\n"
+                + "file=\n"
+                + "while IFS= read -r line; do\n"
+                + "  case \"$line\" in\n"
+                + "    -execute*)\n"
+                + "      case \"$file\" in\n"
+                + "        *stuck*) exec sleep 30 ;;\n"
+                + "        *broken*) echo \"Error: Not a valid JPG - $file\"; echo \"    0 image files updated\" ;;\n"
+                + "        *) echo \"    1 image files updated\" ;;\n"
+                + "      esac\n"
+                + "      echo \"$$ $file\" >> '" + executed.getAbsolutePath() + "'\n"
+                + "      echo \"{ready${line#-execute}}\" ;;\n"
+                + "    -stay_open) read -r value; exit 0 ;;\n"
+                + "    *) file=\"$line\" ;;\n"
+                + "  esac\n"
+                + "done\n";
+        Files.write(exifTool.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(exifTool.setExecutable(true));
+    }
+
+    @Test
+    void writesABatchWithOneExifTool() throws Exception {
+        List<String> log = new ArrayList<>();
+        try (SupervisedExifTool supervised = new SupervisedExifTool(exifTool, TIMEOUT_MILLIS, () -> false, log::add)) {
+            List<String> results = supervised.writeBatch(writes("a.jpg", "b.jpg", "c.jpg"));
+            assertEquals(Collections.nCopies(3, null), results);
+            // The same exiftool is used for the next batch
+            assertEquals(Collections.singletonList(null), supervised.writeBatch(writes("d.jpg")));
+            assertEquals(0, supervised.getRestartCount());
+        }
+        assertTrue(log.isEmpty(), log.toString());
+
+        List<String> lines = Files.readAllLines(executed.toPath());
+        assertEquals(4, lines.size());
+        assertEquals(1, new HashSet<>(pids(lines)).size());
+    }
+
+    @Test
+    void timesOutEachFileOfABatchOnItsOwn() throws Exception {
+        List<String> log = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        List<String> results;
+        try (SupervisedExifTool supervised = new SupervisedExifTool(exifTool, TIMEOUT_MILLIS, () -> false, log::add)) {
+            results = supervised.writeBatch(writes("a.jpg", "stuck.jpg", "b.jpg", "broken.jpg", "c.jpg"));
+
+            assertEquals(1, supervised.getQuarantined().size());
+            assertEquals("stuck.jpg", supervised.getQuarantined().get(0).file.getName());
+            assertTrue(supervised.getRestartCount() >= 1);
+        }
+        // One timeout for the batch and then each attempt on its own, rather than the time limit of the whole batch
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed < TIMEOUT_MILLIS * (SupervisedExifTool.MAX_ATTEMPTS + 1) + 5000, "Took " + elapsed + "ms");
+
+        assertNull(results.get(0));
+        assertTrue(results.get(1).contains("did not finish"), results.get(1));
+        assertNull(results.get(2));
+        assertTrue(results.get(3).contains("Not a valid JPG"), results.get(3));
+        assertNull(results.get(4));
+        assertTrue(log.get(0).startsWith("WARNING: exiftool did not finish"), log.toString());
+
+        // Files after the stuck one are written once, by a new exiftool
+        List<String> lines = Files.readAllLines(executed.toPath());
+        List<String> files = new ArrayList<>();
+        for (String line : lines) {
+            files.add(new File(line.substring(line.indexOf(' ') + 1)).getName());
+        }
+        assertEquals(Arrays.asList("a.jpg", "b.jpg", "broken.jpg", "c.jpg"), files);
+        assertNotEquals(pids(lines).get(0), pids(lines).get(1));
+    }
+
+    @Test
+    void stopsWritingOnceCancelled() throws Exception {
+        try (SupervisedExifTool supervised = new SupervisedExifTool(exifTool, 60_000, () -> true, message -> { })) {
+            // The watchdog kills the stuck exiftool rather than waiting out the time limit
+            List<String> results = supervised.writeBatch(writes("a.jpg", "stuck.jpg", "b.jpg"));
+            assertEquals(3, results.size());
+            assertNotNull(results.get(1));
+            assertNotNull(results.get(2));
+            assertTrue(supervised.getQuarantined().isEmpty());
+        }
+    }
+
+    private List<PendingExifWrite> writes(String... names) throws IOException {
+        List<PendingExifWrite> writes = new ArrayList<>();
+        for (String name : names) {
+            File file = new File(tempDir, name);
+            Files.write(file.toPath(), new byte[]{1});
+            Map<Tag, String> exifData = Collections.singletonMap(StandardTag.MAKE, "Canon");
+            writes.add(new PendingExifWrite(file, () -> Collections.singletonList("-overwrite_original"), exifData,
+                    MediaItem.NO_TIMESTAMP, file, "hash", false));
+        }
+        return writes;
+    }
+
+    private static List<String> pids(List<String> lines) {
+        List<String> pids = new ArrayList<>();
+        for (String line : lines) {
+            pids.add(line.substring(0, line.indexOf(' ')));
+        }
+        return pids;
+    }
+}